@@ -10,8 +10,8 @@ import shutil
 #
 #   EXPECTED INPUT: A folder where the TSV files to import are saved as "1.tsv", "2.tsv" etc.
 #   according to the following list
-#   OUTPUT: Shell scripts for spooling to each AWS environment, and copies of the input files ready to email
-#   in the export folder.
+#   OUTPUT: Shell scripts for spooling to each AWS environment, each importing all subjects in one batch from a
+#   manifest listing the input files, and copies of the input files ready to email in the export folder.
 
 #   SET THESE VALUES before running - must point to existing folders
 #   filesystem root (needed because Ubuntu on Windows...)
@@ -84,14 +84,15 @@ month = str(now.month).zfill(2)
 day = str(now.day).zfill(2)
 date = year + month + day
 
+# Environment name, URL and the most calls per second to make to it, 0 for no limit
 servers = [
-    ("test", "http://ndla-taxonomy-test.uarauzeick.eu-central-1.elasticbeanstalk.com/"),
-    ("brukertest", "http://ndla-taxonomy-brukertest.uarauzeick.eu-central-1.elasticbeanstalk.com/"),
-    ("spoletest", "http://ndla-taxonomy-spoletest.eu-central-1.elasticbeanstalk.com/"),
-    ("staging", "http://ndla-taxonomy-staging.uarauzeick.eu-central-1.elasticbeanstalk.com/"),
-    ("prod", "http://ndla-taxonomy-prod.uarauzeick.eu-central-1.elasticbeanstalk.com/"),
-    ("dev", "http://ndla-taxonomy-dev.eu-central-1.elasticbeanstalk.com/"),
-    ("localhost", "http://localhost:5000/")
+    ("test", "http://ndla-taxonomy-test.uarauzeick.eu-central-1.elasticbeanstalk.com/", 100),
+    ("brukertest", "http://ndla-taxonomy-brukertest.uarauzeick.eu-central-1.elasticbeanstalk.com/", 100),
+    ("spoletest", "http://ndla-taxonomy-spoletest.eu-central-1.elasticbeanstalk.com/", 100),
+    ("staging", "http://ndla-taxonomy-staging.uarauzeick.eu-central-1.elasticbeanstalk.com/", 100),
+    ("prod", "http://ndla-taxonomy-prod.uarauzeick.eu-central-1.elasticbeanstalk.com/", 50),
+    ("dev", "http://ndla-taxonomy-dev.eu-central-1.elasticbeanstalk.com/", 100),
+    ("localhost", "http://localhost:5000/", 0)
 ]
 
 # Maps short names to "pretty names" for subjects, ordered by ID
@@ -166,19 +167,22 @@ def copy_renamed_input_files():
 
 def create_shell_scripts():
     for server in servers:
-        with codecs.open(server[0] + ".sh", "w", "utf-8-sig") as script:
-            script.write("#!/bin/sh\n\n")
+        manifest = server[0] + ".manifest.tsv"
+        with codecs.open(manifest, "w", "utf-8") as subject_list:
             for idx, subject in enumerate(subjects):
                 id = str(idx + 1)
                 path = fs_root + input_folder
                 input_file = path + id + ".tsv"
                 subject_id = 'urn:subject:' + id
-                subject_name = "\"" + subject[1] + "\""
                 logfile = '{}{}-{}-{}-{}.log'.format(path, id, subject[0], date, server[0])
-                environment = server[1]
-                script.write(
-                    "cat {} | {} -i {} -ci CLIENT_ID -cs CLIENT_SECRET -ts TOKEN_SERVER -n {} -e {} &> {}\n".format(input_file, jar_location, subject_id, subject_name,
-                                                                  environment, logfile))
+                subject_list.write("{}\t{}\t{}\t{}\n".format(input_file, subject_id, subject[1], logfile))
+        with codecs.open(server[0] + ".sh", "w", "utf-8-sig") as script:
+            script.write("#!/bin/sh\n\n")
+            environment = server[1]
+            requests_per_second = server[2]
+            script.write(
+                "{} --batch {} -ci CLIENT_ID -cs CLIENT_SECRET -ts TOKEN_SERVER -e {} --requests-per-second {}\n".format(
+                    jar_location, manifest, environment, requests_per_second))
             script.close()
 
 
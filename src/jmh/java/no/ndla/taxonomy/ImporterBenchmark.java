@@ -0,0 +1,95 @@
+package no.ndla.taxonomy;
+
+import no.ndla.taxonomy.client.TaxonomyRestClient;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.client.RestTemplate;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports a synthetic sheet into {@link InMemoryTaxonomyApi} without latency, reporting the time per entity spent in the
+ * importer and its client, including HTTP and JSON over the loopback interface.
+ * <p>
+ * With <code>state=empty</code> every entity is new and all its writes are planned and executed. With
+ * <code>state=imported</code> the sheet has already been imported, so the importer only reads and compares. Each
+ * iteration imports the sheet once into an API and with an importer set up before the iteration, so setting them up
+ * is not timed.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ImporterBenchmark {
+    private static final int ROWS = 1000;
+
+    @Param({"empty", "imported"})
+    private String state;
+
+    @Param({"1", "4"})
+    private int parallelCalls;
+
+    private String[] lines;
+    private InMemoryTaxonomyApi api;
+    private Importer importer;
+    private List<Entity> entities;
+
+    @Setup(Level.Trial)
+    public void setUpSheet() {
+        lines = new SyntheticSheet(ROWS, 4).getLines();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpImport() throws Exception {
+        api = new InMemoryTaxonomyApi(0).start();
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), TestUtils.CLIENT_ID, TestUtils.CLIENT_SECRET, TestUtils.TOKEN_SERVER, new RestTemplate());
+        if (state.equals("imported")) {
+            Importer initial = newImporter(restClient);
+            for (Entity entity : parse()) {
+                initial.doImport(entity);
+            }
+        }
+        importer = newImporter(restClient);
+        entities = parse();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownImport() {
+        api.close();
+    }
+
+    private Importer newImporter(TaxonomyRestClient restClient) {
+        Importer importer = new Importer(restClient, parallelCalls);
+        importer.setSummaryInterval(0);
+        return importer;
+    }
+
+    private List<Entity> parse() {
+        Entity subject = new Entity.Builder()
+                .id(URI.create("urn:subject:1"))
+                .name("Benchmark")
+                .type(Importer.SUBJECT_TYPE)
+                .build();
+        List<Entity> entities = new ArrayList<>();
+        entities.add(subject);
+        TsvParser parser = new TsvParser(lines, subject);
+        while (parser.hasNext()) {
+            Entity entity = parser.next();
+            if (entity != null) entities.add(entity);
+        }
+        return entities;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Importer doImport() {
+        for (Entity entity : entities) {
+            importer.doImport(entity);
+        }
+        return importer;
+    }
+}
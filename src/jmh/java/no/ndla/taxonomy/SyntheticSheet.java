@@ -0,0 +1,76 @@
+package no.ndla.taxonomy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates import sheets of a given size for the benchmarks.
+ * <p>
+ * The sheets have the same layout as the real ones: three levels of topics with resources under them,
+ * resource types, Nynorsk translations and a number of filter and relevance column pairs. A fixed seed makes
+ * every run generate the same sheet, so results can be compared between commits.
+ */
+public class SyntheticSheet {
+    private static final String[] RESOURCE_TYPES = {"Fagstoff", "Oppgaver og aktiviteter", "Vurderingsressurs", "Kildemateriale"};
+    private static final String[] SUB_RESOURCE_TYPES = {"Fagartikkel", "Oppgave", "Egenvurdering", "Dokumentarfilm"};
+    private static final String[] RELEVANCES = {Importer.KJERNESTOFF, Importer.TILLEGGSSSTOFF};
+
+    private final int rows;
+    private final int filterColumns;
+
+    public SyntheticSheet(int rows, int filterColumns) {
+        this.rows = rows;
+        this.filterColumns = filterColumns;
+    }
+
+    public String[] getLines() {
+        Random random = new Random(42);
+        String[] lines = new String[rows + 2];
+        StringBuilder title = new StringBuilder("Klar for import\tHovedemne\tEmneområde\tEmne\tTittelen på ressursen\tOversettelse (ikke påkrevd)\t\t\t");
+        StringBuilder header = new StringBuilder("Import\tEmne nivå 1\tEmne nivå 2\tEmne nivå 3\tLæringsressurs\tnn\tLenke til gammelt system\tRessurstype\tSubressurstype");
+        for (int i = 0; i < filterColumns; i++) {
+            title.append("\tFilter ").append(i + 1).append('\t');
+            header.append("\tFilter\tRelevans");
+        }
+        lines[0] = title.toString();
+        lines[1] = header.toString();
+
+        for (int i = 0; i < rows; i++) {
+            StringBuilder line = new StringBuilder("x\t");
+            int nodeId = 100000 + i;
+            int level = getLevel(i, random);
+            for (int column = 1; column <= 4; column++) {
+                if (column == level) line.append(column == 4 ? "Ressurs " : "Emne ").append(nodeId).append(" æøå");
+                line.append('\t');
+            }
+            line.append(level == 4 ? "Ressurs " : "Emne ").append(nodeId).append(" nynorsk\t");
+            line.append("http://red.ndla.no/nb/node/").append(nodeId).append("?fag=161000\t");
+            int resourceType = random.nextInt(RESOURCE_TYPES.length);
+            line.append(level == 4 ? RESOURCE_TYPES[resourceType] : "").append('\t');
+            line.append(level == 4 && random.nextBoolean() ? SUB_RESOURCE_TYPES[resourceType] : "");
+            for (int filter = 0; filter < filterColumns; filter++) {
+                boolean set = random.nextInt(3) > 0;
+                line.append('\t').append(set ? "VG" + (filter + 1) : "");
+                line.append('\t').append(set ? RELEVANCES[random.nextInt(RELEVANCES.length)] : "");
+            }
+            lines[i + 2] = line.toString();
+        }
+        return lines;
+    }
+
+    public byte[] getBytes() {
+        return (String.join("\n", getLines()) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Roughly one topic for every ten resources, the first row always being a topic at level one.
+     */
+    private static int getLevel(int row, Random random) {
+        if (row == 0) return 1;
+        int draw = random.nextInt(100);
+        if (draw < 2) return 1;
+        if (draw < 5) return 2;
+        if (draw < 10) return 3;
+        return 4;
+    }
+}
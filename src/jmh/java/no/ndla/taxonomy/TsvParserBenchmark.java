@@ -0,0 +1,54 @@
+package no.ndla.taxonomy;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a synthetic sheet from memory, reporting sheets per second and, as the <code>rows</code> counter, rows per second.
+ * Run with <code>-prof gc</code> to also get the bytes allocated per sheet.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TsvParserBenchmark {
+    @Param({"1000", "10000", "100000"})
+    private int rows;
+
+    @Param({"2", "10"})
+    private int filterColumns;
+
+    private byte[] sheet;
+    private Entity subject;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Rows {
+        public long rows;
+    }
+
+    @Setup
+    public void setUp() {
+        sheet = new SyntheticSheet(rows, filterColumns).getBytes();
+        subject = new Entity.Builder()
+                .id(URI.create("urn:subject:1"))
+                .type(Importer.SUBJECT_TYPE)
+                .build();
+    }
+
+    @Benchmark
+    public void parse(Rows counter, Blackhole blackhole) {
+        TsvParser parser = new TsvParser(new TsvTokenizer(Channels.newChannel(new ByteArrayInputStream(sheet))), subject);
+        while (parser.hasNext()) {
+            blackhole.consume(parser.next());
+            counter.rows++;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package no.ndla.taxonomy;
+
+import ch.qos.logback.classic.ClassicConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Imports several subjects in one process, each from its own sheet and with its own log file.
+ * <p>
+ * The subjects share the HTTP connections, the resource type and relevance caches and the subject topic and topic
+ * subtopic connections, and up to a given number of them are imported at the same time. A batch is either a directory
+ * of sheets named after the subject number, e.g. <code>12.tsv</code> for <code>urn:subject:12</code>, or a manifest
+ * with one tab separated line per subject: sheet, subject URN, subject name and, optionally, log file. Relative paths
+ * in a manifest are resolved against the directory of the manifest. Each subject is journaled to a file next to its
+ * sheet, e.g. <code>12.journal</code>, so the batch can be resumed. With {@link ImportedSheets}, the subjects whose
+ * sheet has not changed since it was last imported to the environment without failures are skipped.
+ */
+public class BatchImport {
+    private static final Pattern SHEET_NAME = Pattern.compile("(\\d+)\\.tsv");
+
+    private static final Logger log = LoggerFactory.getLogger("importer");
+
+    private final Supplier<Importer> importers;
+    private final int threads;
+    private final boolean deleteSubjects;
+    private final boolean resume;
+
+    private ImportedSheets importedSheets;
+    private boolean force;
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private Importer lastImporter;
+    private Entity lastEntity;
+
+    /**
+     * @param importers creates the importer for each subject
+     */
+    public BatchImport(Supplier<Importer> importers, int threads, boolean deleteSubjects) {
+        this(importers, threads, deleteSubjects, false);
+    }
+
+    /**
+     * @param resume skip the rows of each sheet its journal records as imported by an earlier run
+     */
+    public BatchImport(Supplier<Importer> importers, int threads, boolean deleteSubjects, boolean resume) {
+        this.importers = importers;
+        this.threads = threads;
+        this.deleteSubjects = deleteSubjects;
+        this.resume = resume;
+    }
+
+    /**
+     * @param force import every subject, also those whose sheet is unchanged, and record them again
+     */
+    public void setImportedSheets(ImportedSheets importedSheets, boolean force) {
+        this.importedSheets = importedSheets;
+        this.force = force;
+    }
+
+    public static class Job {
+        public final Path sheet;
+        public final URI subjectId;
+        public final String subjectName;
+        public final Path logFile;
+        public final Path journalFile;
+
+        public Job(Path sheet, URI subjectId, String subjectName, Path logFile) {
+            this.sheet = sheet;
+            this.subjectId = subjectId;
+            this.subjectName = subjectName;
+            this.logFile = logFile;
+            this.journalFile = getSibling(sheet, ".journal");
+        }
+
+        @Override
+        public String toString() {
+            return subjectId + " (" + sheet.getFileName() + ")";
+        }
+    }
+
+    public static List<Job> readJobs(Path path) throws IOException {
+        return Files.isDirectory(path) ? readDirectory(path) : readManifest(path);
+    }
+
+    private static List<Job> readDirectory(Path directory) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        try (DirectoryStream<Path> sheets = Files.newDirectoryStream(directory, "*.tsv")) {
+            for (Path sheet : sheets) {
+                Matcher matcher = SHEET_NAME.matcher(sheet.getFileName().toString());
+                if (!matcher.matches()) continue;
+                jobs.add(new Job(sheet, URI.create("urn:subject:" + matcher.group(1)), null, getDefaultLogFile(sheet)));
+            }
+        }
+        jobs.sort((a, b) -> Integer.compare(getNumber(a.sheet), getNumber(b.sheet)));
+        return jobs;
+    }
+
+    private static int getNumber(Path sheet) {
+        Matcher matcher = SHEET_NAME.matcher(sheet.getFileName().toString());
+        matcher.matches();
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    private static List<Job> readManifest(Path manifest) throws IOException {
+        Path directory = manifest.toAbsolutePath().getParent();
+        List<Job> jobs = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.startsWith("#")) continue;
+
+            String[] columns = line.split("\t");
+            if (columns.length < 2) {
+                throw new IllegalArgumentException("Line " + lineNumber + " in " + manifest + " must have a sheet and a subject URN");
+            }
+            Path sheet = directory.resolve(columns[0].trim());
+            String subjectName = columns.length > 2 && isNotBlank(columns[2]) ? columns[2].trim() : null;
+            Path logFile = columns.length > 3 && isNotBlank(columns[3]) ? directory.resolve(columns[3].trim()) : getDefaultLogFile(sheet);
+            jobs.add(new Job(sheet, URI.create(columns[1].trim()), subjectName, logFile));
+        }
+        return jobs;
+    }
+
+    private static Path getDefaultLogFile(Path sheet) {
+        return getSibling(sheet, ".log");
+    }
+
+    private static Path getSibling(Path sheet, String extension) {
+        String name = sheet.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return sheet.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + extension);
+    }
+
+    /**
+     * Imports the subjects, logging each to its log file and reporting progress on the console.
+     *
+     * @return the number of subjects that failed to import
+     */
+    public int run(List<Job> jobs, int parallelSubjects) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelSubjects);
+        List<Future<?>> futures = new ArrayList<>();
+        for (Job job : jobs) {
+            futures.add(executor.submit(() -> {
+                String hash = importedSheets != null ? ImportedSheets.getHash(job.sheet, job.subjectName, deleteSubjects) : null;
+                ImportedSheets.Imported unchanged = hash != null && !force ? importedSheets.getUnchanged(job.subjectId, hash) : null;
+                if (unchanged != null) {
+                    log.info("Skipping {}, unchanged since it was imported {} by version {}", job, unchanged.finished, unchanged.version);
+                    skipped.incrementAndGet();
+                    return null;
+                }
+
+                long start = System.currentTimeMillis();
+                Importer importer = importers.get();
+                Exception failure = null;
+
+                MDC.put(LogContext.LOG_FILE, job.logFile.toAbsolutePath().toString());
+                try {
+                    importSubject(job, importer);
+                    log.info(importer.getSummary());
+                } catch (Exception e) {
+                    failure = e;
+                    log.error("Import of {} failed", job, e);
+                } finally {
+                    log.info(ClassicConstants.FINALIZE_SESSION_MARKER, "Closing log");
+                    MDC.remove(LogContext.LOG_FILE);
+                }
+
+                if (failure != null) {
+                    log.error("Import of {} failed: {}, see {}", job, failure.toString(), job.logFile);
+                    throw failure;
+                }
+                log.info("Imported {} in {} s: {}", job, (System.currentTimeMillis() - start) / 1000, importer.getSummary());
+                if (hash != null && importer.getFailedCount() == 0) {
+                    importedSheets.record(job.subjectId, hash, job.sheet);
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+
+        int failed = 0;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @return the number of subjects skipped because their sheet is unchanged
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    private void importSubject(Job job, Importer importer) throws Exception {
+        try (FileChannel sheet = FileChannel.open(job.sheet); ImportJournal journal = ImportJournal.open(job.journalFile, resume)) {
+            importer.setJournal(journal);
+            Entity entity = ImporterApplication.importSubject(importer, sheet, job.subjectId, job.subjectName, deleteSubjects, threads);
+            setLast(importer, entity);
+        }
+    }
+
+    private synchronized void setLast(Importer importer, Entity entity) {
+        if (entity == null) return;
+        lastImporter = importer;
+        lastEntity = entity;
+    }
+
+    /**
+     * Writes the last imported entity again without batch mode, which makes the API rebuild its URL cache once for the whole batch.
+     */
+    public synchronized void rebuildUrlCache() {
+        if (lastImporter != null) {
+            lastImporter.doImportWithoutBatchmode(lastEntity);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package no.ndla.taxonomy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Imports the entities of a parsed sheet on a bounded number of threads.
+ * <p>
+ * An entity is scheduled as soon as its parent has been imported, so the level 1 topic subtrees
+ * and the siblings within them proceed in parallel. Rows for the same node (secondary connections)
+ * are imported one after the other in sheet order, and resource types and filters are created
+ * once by the {@link MetadataRegistry} before they are linked. Ranks are taken from the sheet, so the
+ * order in which siblings complete does not matter.
+ */
+public class ConcurrentImporter {
+    private static final Logger log = LoggerFactory.getLogger("importer");
+
+    private final Importer importer;
+    private final int threads;
+
+    public ConcurrentImporter(Importer importer, int threads) {
+        this.importer = importer;
+        this.threads = threads;
+    }
+
+    /**
+     * Imports the entities, which must be in sheet order with the subject already imported.
+     */
+    public void importAll(List<Entity> entities) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicInteger failed = new AtomicInteger();
+        try {
+            Map<Entity, CompletableFuture<Void>> imported = new IdentityHashMap<>();
+            Map<String, CompletableFuture<Void>> lastOccurrence = new HashMap<>();
+
+            for (Entity entity : entities) {
+                CompletableFuture<Void> parent = imported.getOrDefault(entity.parent, CompletableFuture.completedFuture(null));
+                CompletableFuture<Void> previous = CompletableFuture.completedFuture(null);
+                String key = getKey(entity);
+                if (key != null && lastOccurrence.containsKey(key)) {
+                    // a failed earlier occurrence must not block the later ones
+                    previous = lastOccurrence.get(key).handle((result, e) -> null);
+                }
+
+                CompletableFuture<Void> future = CompletableFuture.allOf(parent, previous).thenRunAsync(LogContext.wrap(() -> {
+                    try {
+                        importer.doImport(entity);
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        log.error("Import failed for {} {}", entity.type, entity.nodeId, e);
+                        throw e;
+                    }
+                }), executor);
+                imported.put(entity, future);
+                if (key != null) lastOccurrence.put(key, future);
+            }
+
+            int notImported = 0;
+            for (CompletableFuture<Void> future : imported.values()) {
+                try {
+                    future.join();
+                } catch (CompletionException e) {
+                    notImported++;
+                }
+            }
+            if (notImported > 0) {
+                throw new IllegalStateException(failed.get() + " entities failed to import and " + (notImported - failed.get())
+                        + " were skipped because their parent failed, see the log for details");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private String getKey(Entity entity) {
+        if (entity.getId() != null) return entity.getId().toString();
+        if (entity.nodeId != null) return entity.type + ":" + entity.nodeId;
+        return null;
+    }
+}
@@ -0,0 +1,34 @@
+package no.ndla.taxonomy;
+
+import java.net.URI;
+
+public class Connection {
+    public static final int UNKNOWN_RANK = -1;
+
+    public URI id;
+    public URI parentId;
+    public URI childId;
+    public int rank;
+    public boolean primary;
+
+    // for reading mirrors
+    public Connection() {
+    }
+
+    public Connection(URI id, URI parentId, URI childId, int rank, boolean primary) {
+        this.id = id;
+        this.parentId = parentId;
+        this.childId = childId;
+        this.rank = rank;
+        this.primary = primary;
+    }
+
+    @Override
+    public String toString() {
+        return "Connection{" +
+                "id=" + id +
+                ", parentId=" + parentId +
+                ", childId=" + childId +
+                '}';
+    }
+}
@@ -0,0 +1,112 @@
+package no.ndla.taxonomy;
+
+import no.ndla.taxonomy.client.TaxonomyRestClient;
+import no.ndla.taxonomy.client.subjectTopics.SubjectTopicIndexDocument;
+import no.ndla.taxonomy.client.topicSubtopics.TopicSubtopicIndexDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The subject topic and topic subtopic connections of the whole taxonomy, with their URNs, ranks and primary flags.
+ * <p>
+ * The API only lists these with all of their fields for the whole taxonomy, so they are read once, on first use, and
+ * each {@link SubjectTreeSnapshot} takes the connections of its subject from here. A snapshot shares the connections
+ * it takes and adds the ones it creates, so the registry stays up to date with what the importers write. Importers for
+ * different subjects should share a registry, so a batch reads the listings only once.
+ */
+public class ConnectionRegistry {
+    private static final Logger log = LoggerFactory.getLogger("importer");
+
+    private final TaxonomyRestClient restClient;
+    private final Map<URI, List<Connection>> subjectTopics = new ConcurrentHashMap<>();
+    private final Map<URI, List<Connection>> parents = new ConcurrentHashMap<>();
+    private final Map<URI, List<Connection>> children = new ConcurrentHashMap<>();
+    private volatile boolean loaded;
+
+    public ConnectionRegistry(TaxonomyRestClient restClient) {
+        this.restClient = restClient;
+    }
+
+    private void load() {
+        if (loaded) return;
+        synchronized (this) {
+            if (loaded) return;
+            long start = System.nanoTime();
+            SubjectTopicIndexDocument[] subjectTopicDocuments = restClient.getSubjectTopics();
+            for (SubjectTopicIndexDocument subjectTopic : subjectTopicDocuments) {
+                add(subjectTopics, subjectTopic.subjectid, new Connection(subjectTopic.id, subjectTopic.subjectid, subjectTopic.topicid, subjectTopic.rank, subjectTopic.primary));
+            }
+            TopicSubtopicIndexDocument[] topicSubtopicDocuments = restClient.getTopicSubtopics();
+            for (TopicSubtopicIndexDocument topicSubtopic : topicSubtopicDocuments) {
+                addTopicSubtopicConnection(new Connection(topicSubtopic.id, topicSubtopic.topicid, topicSubtopic.subtopicid, topicSubtopic.rank, topicSubtopic.primary));
+            }
+            loaded = true;
+            log.info("Read {} subject topic and {} topic subtopic connections in {} ms", subjectTopicDocuments.length, topicSubtopicDocuments.length,
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    public List<Connection> getSubjectTopics(URI subjectId) {
+        load();
+        return subjectTopics.getOrDefault(subjectId, Collections.emptyList());
+    }
+
+    /**
+     * @return the connections to the parents and the subtopics of the topic
+     */
+    public List<Connection> getTopicSubtopics(URI topicId) {
+        load();
+        List<Connection> connections = new ArrayList<>(parents.getOrDefault(topicId, Collections.emptyList()));
+        connections.addAll(children.getOrDefault(topicId, Collections.emptyList()));
+        return connections;
+    }
+
+    /**
+     * Records a connection created by an importer. Before the registry is read, it is left to the read.
+     */
+    public void putSubjectTopic(Connection connection) {
+        if (loaded) add(subjectTopics, connection.parentId, connection);
+    }
+
+    /**
+     * Records a connection created by an importer. Before the registry is read, it is left to the read.
+     */
+    public void putTopicSubtopic(Connection connection) {
+        if (loaded) addTopicSubtopicConnection(connection);
+    }
+
+    /**
+     * Forgets the connections of a deleted topic, which the API deletes with it.
+     */
+    public void removeTopic(URI topicId) {
+        if (!loaded) return;
+        for (List<Connection> connections : subjectTopics.values()) {
+            connections.removeIf(connection -> connection.childId.equals(topicId));
+        }
+        for (Connection connection : parents.getOrDefault(topicId, Collections.emptyList())) {
+            children.getOrDefault(connection.parentId, Collections.emptyList()).remove(connection);
+        }
+        for (Connection connection : children.getOrDefault(topicId, Collections.emptyList())) {
+            parents.getOrDefault(connection.childId, Collections.emptyList()).remove(connection);
+        }
+        parents.remove(topicId);
+        children.remove(topicId);
+    }
+
+    private void addTopicSubtopicConnection(Connection connection) {
+        add(parents, connection.childId, connection);
+        add(children, connection.parentId, connection);
+    }
+
+    private static void add(Map<URI, List<Connection>> index, URI key, Connection connection) {
+        index.computeIfAbsent(key, id -> new CopyOnWriteArrayList<>()).add(connection);
+    }
+}
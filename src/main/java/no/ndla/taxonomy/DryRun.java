@@ -0,0 +1,127 @@
+package no.ndla.taxonomy;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import no.ndla.taxonomy.client.CallMetrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Takes the place of the API for the writes of an import, so the import can be planned without changing anything.
+ * <p>
+ * Each operation is written as one line of JSON, in the order it would have been executed, and then completed as if
+ * it had succeeded, so the importer plans the rest of the sheet as if it had been written: an entity created on
+ * one row is connected to on the next. Connections created in a dry run get made up URNs. Reads still go to the
+ * API, or to a snapshot of it, and are counted by its {@link CallMetrics}, which together with the planned writes
+ * gives the number of calls per endpoint the import would make.
+ */
+public class DryRun {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Writer plan;
+    private final Map<String, Long> writes = new TreeMap<>();
+    private long sequence;
+
+    public DryRun(Writer plan) {
+        this.plan = plan;
+    }
+
+    /**
+     * @param entity the entity the operation belongs to, or null for resource types, relevances and filters
+     * @return the location the API would have answered with
+     */
+    public synchronized URI run(Entity entity, Operation operation) {
+        sequence++;
+        String endpoint = getEndpoint(operation);
+        writes.merge(endpoint, 1L, Long::sum);
+
+        ObjectNode line = objectMapper.createObjectNode();
+        line.put("seq", sequence);
+        if (entity != null) {
+            if (entity.lineNumber > 0) line.put("line", entity.lineNumber);
+            line.put("entity", String.valueOf(entity.getId()));
+        }
+        line.put("action", operation.action.toString());
+        line.put("target", operation.target);
+        line.put("endpoint", endpoint);
+        line.put("id", operation.id != null ? operation.id.toString() : null);
+        line.set("attributes", objectMapper.valueToTree(operation.getAttributes()));
+        try {
+            plan.write(objectMapper.writeValueAsString(line));
+            plan.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the plan", e);
+        }
+
+        return operation.simulate(getLocation(operation));
+    }
+
+    private URI getLocation(Operation operation) {
+        boolean entity = operation.target.equals("subjects") || operation.target.equals("topics") || operation.target.equals("resources")
+                || operation.target.equals("resource-types") || operation.target.equals("relevances") || operation.target.equals("filters");
+        if (operation.action == Operation.Action.CREATE && entity && operation.id != null) {
+            return URI.create("/v1/" + operation.target + "/" + operation.id);
+        }
+        if (operation.action == Operation.Action.CREATE) {
+            return URI.create("/v1/" + operation.target + "/urn:dry-run:" + operation.target + ":" + sequence);
+        }
+        return operation.id != null ? URI.create("/v1/" + operation.target + "/" + operation.id) : null;
+    }
+
+    /**
+     * @return the endpoint template the operation would call, as {@link CallMetrics} names it
+     */
+    static String getEndpoint(Operation operation) {
+        switch (operation.target) {
+            case "translations":
+                String scheme = operation.id != null ? operation.id.getSchemeSpecificPart() : "";
+                String entities = scheme.startsWith("subject") ? "subjects" : scheme.startsWith("topic") ? "topics" : "resources";
+                return "PUT /v1/" + entities + "/{id}/translations/{language}";
+            case "url-mapping":
+                return "PUT /v1/url/mapping";
+        }
+        switch (operation.action) {
+            case CREATE:
+                return "POST /v1/" + operation.target;
+            case UPDATE:
+                return "PUT /v1/" + operation.target + "/{id}";
+            default:
+                return "DELETE /v1/" + operation.target + "/{id}";
+        }
+    }
+
+    public synchronized long getPlannedWrites() {
+        return sequence;
+    }
+
+    public void flush() throws IOException {
+        plan.flush();
+    }
+
+    /**
+     * @param reads the calls made while planning
+     * @param latencyMillis the assumed latency of a call
+     * @param parallelCalls the number of calls the import would make at once
+     * @return the number of calls per endpoint the import would make and an estimate of how long it would take
+     */
+    public synchronized String getEstimate(CallMetrics reads, double latencyMillis, int parallelCalls) {
+        Map<String, Long> calls = new TreeMap<>(writes);
+        for (CallMetrics.EndpointStatistics statistics : reads.getStatistics()) {
+            calls.merge(statistics.endpoint, statistics.calls, Long::sum);
+        }
+        long total = 0;
+        StringBuilder estimate = new StringBuilder(String.format("%-60s %8s%n", "Endpoint", "Calls"));
+        for (Map.Entry<String, Long> endpoint : calls.entrySet()) {
+            estimate.append(String.format("%-60s %8d%n", endpoint.getKey(), endpoint.getValue()));
+            total += endpoint.getValue();
+        }
+        double seconds = total * latencyMillis / 1000 / Math.max(1, parallelCalls);
+        return estimate.append(String.format("%d calls, %d of them writes, about %.0f s at %.0f ms per call and %d calls at once",
+                total, sequence, seconds, latencyMillis, parallelCalls)).toString();
+    }
+}
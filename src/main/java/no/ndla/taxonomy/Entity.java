@@ -16,6 +16,7 @@ public class Entity {
     public Entity parent;
     public List<Filter> filters = new ArrayList<>();
     public String oldUrl;
+    public int lineNumber;
     private URI id;
 
     public URI getId() {
@@ -0,0 +1,158 @@
+package no.ndla.taxonomy;
+
+import no.ndla.taxonomy.client.AsyncTaxonomyRestClient;
+import no.ndla.taxonomy.client.resources.ResourceIndexDocument;
+import no.ndla.taxonomy.client.subjects.SubjectIndexDocument;
+import no.ndla.taxonomy.client.topics.TopicIndexDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import static no.ndla.taxonomy.Importer.*;
+
+/**
+ * The current state of the subjects, topics and resources a sheet refers to, keyed by URN.
+ * <p>
+ * Loaded before the import by looking up every entity of the sheet concurrently, so the planner knows
+ * whether to create or update an entity without a round trip of its own. Entities that do not exist are
+ * recorded as absent. The planner records the entities it creates and updates, so an entity on several
+ * rows is only created once. Entities the index knows nothing about, e.g. the subject, are looked up
+ * when they are planned. An index restored from a {@link TaxonomyMirror} only looks up the entities the mirror lacks.
+ */
+public class ExistenceIndex {
+    private static final Logger log = LoggerFactory.getLogger("importer");
+    private static final Object ABSENT = new Object();
+
+    private final Map<URI, Object> documents = new ConcurrentHashMap<>();
+
+    public static ExistenceIndex empty() {
+        return new ExistenceIndex();
+    }
+
+    /**
+     * Looks up the entities, giving topics and resources without a URN the one derived from their node ID first.
+     */
+    public static ExistenceIndex load(AsyncTaxonomyRestClient asyncClient, List<Entity> entities) {
+        ExistenceIndex index = new ExistenceIndex();
+        index.lookUp(asyncClient, entities);
+        return index;
+    }
+
+    /**
+     * Looks up the entities the index knows nothing about yet, e.g. those that are not in the mirror it was restored from.
+     *
+     * @return the number of entities looked up
+     */
+    public int lookUp(AsyncTaxonomyRestClient asyncClient, List<Entity> entities) {
+        Map<URI, CompletableFuture<?>> lookups = new LinkedHashMap<>();
+        for (Entity entity : entities) {
+            ImportPlanner.assignId(entity);
+            URI id = entity.getId();
+            if (id == null || lookups.containsKey(id) || documents.containsKey(id)) continue;
+
+            switch (entity.type) {
+                case SUBJECT_TYPE:
+                    lookups.put(id, asyncClient.findSubject(id));
+                    break;
+                case TOPIC_TYPE:
+                    lookups.put(id, asyncClient.findTopic(id));
+                    break;
+                case RESOURCE_TYPE:
+                    lookups.put(id, asyncClient.findResource(id));
+                    break;
+            }
+        }
+
+        for (Map.Entry<URI, CompletableFuture<?>> lookup : lookups.entrySet()) {
+            try {
+                Object document = AsyncTaxonomyRestClient.join(lookup.getValue());
+                documents.put(lookup.getKey(), document != null ? document : ABSENT);
+            } catch (RuntimeException e) {
+                // left out of the index, so the planner looks it up again
+                log.warn("Could not look up {}: {}", lookup.getKey(), e.getMessage());
+            }
+        }
+        return lookups.size();
+    }
+
+    /**
+     * @return true if the index knows whether the entity exists
+     */
+    public boolean contains(URI id) {
+        return documents.containsKey(id);
+    }
+
+    /**
+     * @return the entity as read from the API or as last written, or null if it does not exist or is not of the given type
+     */
+    public <T> T get(URI id, Class<T> type) {
+        Object document = documents.get(id);
+        return type.isInstance(document) ? type.cast(document) : null;
+    }
+
+    public int size() {
+        return documents.size();
+    }
+
+    public int getAbsent() {
+        int absent = 0;
+        for (Object document : documents.values()) {
+            if (document == ABSENT) absent++;
+        }
+        return absent;
+    }
+
+    /**
+     * Calls the consumer with each entity that exists, as read from the API or as last written.
+     */
+    public void forEach(BiConsumer<URI, Object> consumer) {
+        documents.forEach((id, document) -> {
+            if (document != ABSENT) consumer.accept(id, document);
+        });
+    }
+
+    /**
+     * Records an entity as read from the API or from a mirror of it.
+     */
+    public void put(URI id, Object document) {
+        documents.put(id, document);
+    }
+
+    /**
+     * Records the name and content URI of an entity that has been created or updated.
+     */
+    public void put(Entity entity) {
+        if (entity.getId() == null) return;
+
+        switch (entity.type) {
+            case SUBJECT_TYPE:
+                SubjectIndexDocument subject = new SubjectIndexDocument();
+                subject.id = entity.getId();
+                subject.name = entity.name;
+                subject.contentUri = entity.contentUri;
+                documents.put(subject.id, subject);
+                break;
+            case TOPIC_TYPE:
+                TopicIndexDocument topic = new TopicIndexDocument();
+                topic.id = entity.getId();
+                topic.name = entity.name;
+                topic.contentUri = entity.contentUri;
+                documents.put(topic.id, topic);
+                break;
+            case RESOURCE_TYPE:
+                ResourceIndexDocument resource = new ResourceIndexDocument();
+                resource.id = entity.getId();
+                resource.name = entity.name;
+                resource.contentUri = entity.contentUri;
+                documents.put(resource.id, resource);
+                break;
+        }
+    }
+}
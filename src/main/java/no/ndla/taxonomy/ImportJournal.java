@@ -0,0 +1,164 @@
+package no.ndla.taxonomy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only file of the topics and resources of a sheet that have been imported completely, so an import
+ * that stopped half way can be resumed from where it stopped.
+ * <p>
+ * Each line holds the line number of the row in the sheet, the URN of the entity and a hash of the row, its
+ * parent and the data written, separated by tabs. Lines are written as soon as an entity is imported and
+ * forced to disk every {@link #DEFAULT_SYNC_INTERVAL} entities and when the journal is closed, so a crash loses
+ * at most the last few entities, which are then imported again. A row that has changed since it was journaled
+ * has another hash and is imported again as well. A torn last line is ignored.
+ */
+public class ImportJournal implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger("importer");
+
+    public static final int DEFAULT_SYNC_INTERVAL = 100;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final Map<Integer, Completed> completed = new HashMap<>();
+    private final int syncInterval;
+    private int unsynced;
+
+    private static class Completed {
+        final URI id;
+        final String hash;
+
+        Completed(URI id, String hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+    }
+
+    private ImportJournal(Path file, FileChannel channel, int syncInterval) {
+        this.file = file;
+        this.channel = channel;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * @param resume keep what the journal already records, otherwise it is emptied
+     */
+    public static ImportJournal open(Path file, boolean resume) throws IOException {
+        return open(file, resume, DEFAULT_SYNC_INTERVAL);
+    }
+
+    public static ImportJournal open(Path file, boolean resume, int syncInterval) throws IOException {
+        FileChannel channel = resume
+                ? FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ImportJournal journal = new ImportJournal(file, channel, syncInterval);
+        if (resume) journal.read();
+        channel.position(channel.size());
+        return journal;
+    }
+
+    private void read() throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        String[] lines = new String(content, StandardCharsets.UTF_8).split("\n");
+        for (String line : lines) {
+            String[] columns = line.split("\t");
+            if (columns.length != 3) continue;
+            try {
+                completed.put(Integer.parseInt(columns[0]), new Completed(URI.create(columns[1]), columns[2]));
+            } catch (IllegalArgumentException e) {
+                log.warn("Ignoring line in journal {}: {}", file, line);
+            }
+        }
+        if (content.length > 0 && content[content.length - 1] != '\n') {
+            // the last line was torn by a crash, start the next one on a line of its own
+            channel.write(ByteBuffer.wrap(new byte[]{'\n'}), channel.size());
+        }
+        log.info("Read {} imported entities from journal {}", completed.size(), file);
+    }
+
+    /**
+     * @return the URN of the entity if its row has been imported with the same parent and data, otherwise null
+     */
+    public synchronized URI getCompleted(Entity entity) {
+        Completed entry = completed.get(entity.lineNumber);
+        return entry != null && entry.hash.equals(getHash(entity)) ? entry.id : null;
+    }
+
+    public synchronized int size() {
+        return completed.size();
+    }
+
+    /**
+     * Records that an entity has been imported completely.
+     *
+     * @param hash the hash of the entity as parsed, see {@link #getHash(Entity)}
+     */
+    public synchronized void record(Entity entity, String hash) {
+        if (entity.getId() == null || entity.lineNumber <= 0) return;
+
+        String line = entity.lineNumber + "\t" + entity.getId() + "\t" + hash + "\n";
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            completed.put(entity.lineNumber, new Completed(entity.getId(), hash));
+            if (++unsynced >= syncInterval) sync();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to journal " + file, e);
+        }
+    }
+
+    public synchronized void sync() throws IOException {
+        if (unsynced == 0) return;
+        channel.force(false);
+        unsynced = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Must be taken before the entity is planned, which fills in the name and content URI of a resource row that leaves them out,
+     * and after its parent has an id.
+     */
+    static String getHash(Entity entity) {
+        String row = entity.type + "\n" + entity.nodeId + "\n" + (entity.parent != null ? entity.parent.getId() : null) + "\n"
+                + entity.isPrimary + "\n" + ImportPlanner.getFingerprint(entity);
+        return sha1(row);
+    }
+
+    static String sha1(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
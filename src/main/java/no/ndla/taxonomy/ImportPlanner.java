@@ -0,0 +1,501 @@
+package no.ndla.taxonomy;
+
+import no.ndla.taxonomy.client.TaxonomyRestClient;
+import no.ndla.taxonomy.client.resources.FilterIndexDocument;
+import no.ndla.taxonomy.client.resources.ResourceIndexDocument;
+import no.ndla.taxonomy.client.resources.ResourceTypeIndexDocument;
+import no.ndla.taxonomy.client.subjects.SubjectIndexDocument;
+import no.ndla.taxonomy.client.topics.TopicIndexDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static no.ndla.taxonomy.Importer.*;
+import static org.apache.commons.lang3.StringUtils.*;
+
+/**
+ * Compares parsed entities with the current state of the taxonomy API and plans the writes needed to reconcile them.
+ * <p>
+ * Only creates, updates and deletes for data that actually differs are planned, so re-importing an unchanged
+ * sheet reads the remote state but writes nothing. Operations are planned per entity and must be executed
+ * before any entity depending on them is planned, since their write-through callbacks update the state the
+ * planner reads. Entities in different subtrees may be planned concurrently once their subject is imported.
+ */
+public class ImportPlanner {
+    private static final Logger log = LoggerFactory.getLogger("importer");
+    private enum State {SKIPPED, NEW, EXISTING, SYNCED}
+
+    private final TaxonomyRestClient restClient;
+    private final MetadataRegistry metadata;
+    private final TopicResourceIndex topicResources;
+    private final ConnectionRegistry connections;
+    private volatile SubjectTreeSnapshot subjectTree = SubjectTreeSnapshot.empty();
+    private volatile ExistenceIndex existing = ExistenceIndex.empty();
+    private volatile Entity currentSubject;
+    private volatile SubjectTreeSnapshot restoredTree;
+
+    // fingerprints of the topics and resources written this run, so an entity on several rows is only synced once
+    private final Map<URI, String> synced = new ConcurrentHashMap<>();
+    private final Map<URI, SyncContext> contexts = new ConcurrentHashMap<>();
+
+    public ImportPlanner(TaxonomyRestClient restClient) {
+        this(restClient, new MetadataRegistry(restClient));
+    }
+
+    public ImportPlanner(TaxonomyRestClient restClient, MetadataRegistry metadata) {
+        this(restClient, metadata, new ConnectionRegistry(restClient));
+    }
+
+    /**
+     * @param connections the subject topic and topic subtopic connections, shared with the planners of other subjects
+     */
+    public ImportPlanner(TaxonomyRestClient restClient, MetadataRegistry metadata, ConnectionRegistry connections) {
+        this.restClient = restClient;
+        this.metadata = metadata;
+        this.connections = connections;
+        this.topicResources = new TopicResourceIndex(restClient);
+    }
+
+    /**
+     * Sets which entities exist, as looked up before the import, so planning them needs no lookup of its own.
+     */
+    public void setExistenceIndex(ExistenceIndex existing) {
+        this.existing = existing;
+    }
+
+    public ExistenceIndex getExistenceIndex() {
+        return existing;
+    }
+
+    /**
+     * Starts from the state saved in a mirror instead of reading it from the API: which entities exist, their collections,
+     * the subject tree and the resources of the topics.
+     */
+    public void restore(TaxonomyMirror mirror) {
+        ExistenceIndex restored = ExistenceIndex.empty();
+        mirror.entities.forEach((key, entity) -> {
+            URI id = URI.create(key);
+            restored.put(id, entity.toDocument(id));
+            if (entity.resourceTypes != null || entity.filters != null || entity.translations != null) {
+                contexts.put(id, SyncContext.restored(restClient, id, entity));
+            }
+        });
+        existing = restored;
+        restoredTree = SubjectTreeSnapshot.restore(mirror, connections);
+        mirror.topicResources.forEach((topicId, connections) -> topicResources.restore(URI.create(topicId), connections));
+    }
+
+    /**
+     * @return the state of the subject as far as the planner knows it, or null if it has not planned the subject
+     */
+    public TaxonomyMirror save(String endpoint, URI subjectId) {
+        if (!subjectTree.isFor(subjectId)) return null;
+
+        TaxonomyMirror mirror = new TaxonomyMirror(endpoint, subjectId);
+        existing.forEach(mirror::putEntity);
+        contexts.forEach((id, context) -> {
+            TaxonomyMirror.MirroredEntity entity = mirror.getEntity(id);
+            if (entity != null) context.saveTo(entity);
+        });
+        subjectTree.saveTo(mirror);
+        topicResources.saveTo(mirror);
+        return mirror;
+    }
+
+    public List<Operation> plan(Entity entity) {
+        return plan(entity, false);
+    }
+
+    /**
+     * @param forceUpdate write the entity itself even if it is unchanged, e.g. to trigger a cache rebuild in the API
+     */
+    public List<Operation> plan(Entity entity, boolean forceUpdate) {
+        List<Operation> operations = new ArrayList<>();
+        if (entity.type.equals(SUBJECT_TYPE)) {
+            currentSubject = entity;
+        }
+
+        State state = !forceUpdate && isSynced(entity) ? State.SYNCED : planEntity(entity, forceUpdate, operations);
+        if (state == State.SKIPPED) return operations;
+
+        SyncContext context = state == State.SYNCED ? null : getSyncContext(entity, state);
+        if (context != null && entity.type.equals(TOPIC_TYPE)) {
+            planTopicFilters(entity, context, operations);
+        } else if (context != null && entity.type.equals(RESOURCE_TYPE)) {
+            planResourceTypes(entity, context, operations);
+            planResourceFilters(entity, context, operations);
+        }
+
+        // a new entity has no connections, and one without a URN only gets it when it is created
+        boolean isNew = state == State.NEW;
+        if (entity.parent != null && entity.parent.type.equals(SUBJECT_TYPE) && entity.type.equals(TOPIC_TYPE)) {
+            planSubjectTopic(entity, isNew, operations);
+        } else if (entity.parent != null && entity.parent.type.equals(TOPIC_TYPE) && entity.type.equals(TOPIC_TYPE)) {
+            planTopicSubtopic(entity, isNew, operations);
+        } else if (entity.parent != null && entity.parent.type.equals(TOPIC_TYPE) && entity.type.equals(RESOURCE_TYPE)) {
+            planTopicResource(entity, isNew, operations);
+        }
+
+        if (context != null) {
+            planTranslations(entity, context, operations);
+        }
+        return operations;
+    }
+
+    private SyncContext getSyncContext(Entity entity, State state) {
+        if (state == State.NEW) {
+            SyncContext context = SyncContext.created(restClient, entity.getId(), entity.type);
+            if (entity.getId() != null) contexts.put(entity.getId(), context);
+            return context;
+        }
+        return contexts.computeIfAbsent(entity.getId(), id -> SyncContext.existing(restClient, id, entity.type));
+    }
+
+    /**
+     * Records that all operations planned for an entity succeeded, so a later row with the same data only needs its connection.
+     */
+    public void markSynced(Entity entity) {
+        if (entity.getId() == null || entity.type.equals(SUBJECT_TYPE)) return;
+        synced.put(entity.getId(), getFingerprint(entity));
+    }
+
+    /**
+     * @return true if the entity has been synced this run with the same name, content URI, resource types, filters and translations
+     */
+    private boolean isSynced(Entity entity) {
+        if (entity.type.equals(SUBJECT_TYPE)) return false;
+        assignId(entity);
+        String fingerprint = entity.getId() != null ? synced.get(entity.getId()) : null;
+        if (fingerprint == null) return false;
+
+        if (entity.type.equals(RESOURCE_TYPE)) {
+            // a resource row may leave out the name and content URI, meaning the ones it already has
+            ResourceIndexDocument resource = existing.get(entity.getId(), ResourceIndexDocument.class);
+            if (resource != null && entity.contentUri == null) entity.contentUri = resource.contentUri;
+            if (resource != null && entity.name == null) entity.name = resource.name;
+        }
+        if (fingerprint.equals(getFingerprint(entity))) {
+            log.debug("Already synced {}, only connecting it to {}", entity.getId(), entity.parent != null ? entity.parent.getId() : null);
+            return true;
+        }
+        log.info("{} occurs again with other data, syncing it again", entity.getId());
+        return false;
+    }
+
+    static String getFingerprint(Entity entity) {
+        StringBuilder fingerprint = new StringBuilder();
+        fingerprint.append(entity.name).append('\n').append(entity.contentUri).append('\n');
+        SortedSet<String> resourceTypes = new TreeSet<>();
+        for (ResourceType resourceType : entity.resourceTypes) {
+            if (resourceType != null) resourceTypes.add(resourceType.name.toLowerCase());
+        }
+        fingerprint.append(resourceTypes).append('\n');
+        SortedSet<String> filters = new TreeSet<>();
+        for (Filter filter : entity.filters) {
+            filters.add(filter.name + "=" + (filter.relevance != null ? filter.relevance.name : null));
+        }
+        fingerprint.append(filters).append('\n');
+        SortedMap<String, String> translations = new TreeMap<>();
+        entity.translations.forEach((language, translation) -> translations.put(language, translation.name));
+        return fingerprint.append(translations).toString();
+    }
+
+    private State planEntity(Entity entity, boolean forceUpdate, List<Operation> operations) {
+        switch (entity.type) {
+            case SUBJECT_TYPE:
+                return planSubject(entity, forceUpdate, operations);
+            case TOPIC_TYPE:
+                return planTopic(entity, forceUpdate, operations);
+            default:
+                return planResource(entity, forceUpdate, operations);
+        }
+    }
+
+    private State planSubject(Entity entity, boolean forceUpdate, List<Operation> operations) {
+        SubjectIndexDocument subject = find(entity.getId(), SubjectIndexDocument.class, restClient::findSubject);
+        if (subject == null) {
+            log.info("Creating subject: {} with name {}", entity.getId(), entity.name);
+            operations.add(upsert(Operation.create("subjects", entity.getId(), () -> restClient.createSubject(entity.getId(), entity.name, entity.contentUri)), entity));
+            subjectTree = SubjectTreeSnapshot.empty(entity.getId(), connections);
+            return State.NEW;
+        }
+
+        // a batch job may leave out the name, and a sheet never has the content URI of its subject, meaning the ones it already has
+        if (entity.name == null) entity.name = subject.name;
+        if (entity.contentUri == null) entity.contentUri = subject.contentUri;
+        if (forceUpdate || isChanged(entity, subject.name, subject.contentUri)) {
+            log.info("Updating subject: {}", entity.getId());
+            operations.add(upsert(Operation.update("subjects", entity.getId(), () -> restClient.updateEntity(entity.getId(), entity.name, entity.contentUri, SUBJECT_TYPE)), entity));
+        }
+        SubjectTreeSnapshot restored = restoredTree;
+        restoredTree = null;
+        subjectTree = restored != null && restored.isFor(entity.getId()) ? restored : SubjectTreeSnapshot.load(restClient, connections, entity.getId());
+        return State.EXISTING;
+    }
+
+    private State planTopic(Entity entity, boolean forceUpdate, List<Operation> operations) {
+        assignId(entity);
+
+        TopicIndexDocument topic = find(entity.getId(), TopicIndexDocument.class, restClient::findTopic);
+        if (topic == null) {
+            log.debug("Creating topic: {}", entity.getId());
+            operations.add(upsert(Operation.create("topics", entity.getId(), () -> restClient.createTopic(entity.getId(), entity.name, entity.contentUri)), entity)
+                    .onSuccess(location -> {
+                        entity.setId(getId(location));
+                        existing.put(entity);
+                        topicResources.markEmpty(entity.getId());
+                        subjectTree.putTopic(entity.getId(), entity.name, entity.contentUri);
+                    }));
+            return State.NEW;
+        }
+
+        if (forceUpdate || isChanged(entity, topic.name, topic.contentUri)) {
+            log.debug("Updating topic: {}", entity.getId());
+            operations.add(upsert(Operation.update("topics", entity.getId(), () -> restClient.updateEntity(entity.getId(), entity.name, entity.contentUri, TOPIC_TYPE)), entity));
+        }
+        subjectTree.putTopic(entity.getId(), entity.name, entity.contentUri);
+        return State.EXISTING;
+    }
+
+    private State planResource(Entity entity, boolean forceUpdate, List<Operation> operations) {
+        if (null == entity.getId() && isEmpty(entity.nodeId)) {
+            log.warn("Unable to create ID for entity {}. Skipping.", entity.name);
+            return State.SKIPPED;
+        }
+        assignId(entity);
+
+        ResourceIndexDocument resource = find(entity.getId(), ResourceIndexDocument.class, restClient::findResource);
+        if (resource == null) {
+            log.debug("Creating resource: {} with nodeId: {}", entity.getId(), entity.nodeId);
+            operations.add(upsert(Operation.create("resources", entity.getId(), () -> restClient.createResource(entity.getId(), entity.name, entity.contentUri)), entity));
+            return State.NEW;
+        }
+
+        if (entity.contentUri == null) entity.contentUri = resource.contentUri;
+        if (entity.name == null) entity.name = resource.name;
+        if (forceUpdate || isChanged(entity, resource.name, resource.contentUri)) {
+            log.debug("Updating resource: {}", entity.getId());
+            operations.add(upsert(Operation.update("resources", entity.getId(), () -> restClient.updateEntity(entity.getId(), entity.name, entity.contentUri, RESOURCE_TYPE)), entity));
+        }
+        return State.EXISTING;
+    }
+
+    private Operation upsert(Operation operation, Entity entity) {
+        return operation
+                .with("name", entity.name)
+                .with("contentUri", entity.contentUri)
+                .onSuccess(location -> {
+                    entity.setId(getId(location));
+                    existing.put(entity);
+                })
+                .required();
+    }
+
+    /**
+     * Gives a topic or resource without a URN the one derived from its node ID, e.g. <code>urn:topic:1:123</code>.
+     */
+    static void assignId(Entity entity) {
+        if (entity.getId() != null) return;
+
+        if (entity.type.equals(TOPIC_TYPE) && entity.nodeId != null) {
+            entity.setId("urn:topic:1:" + entity.nodeId);
+        } else if (entity.type.equals(RESOURCE_TYPE) && isNotEmpty(entity.nodeId)) {
+            try {
+                entity.setId("urn:resource:1:" + entity.nodeId);
+            } catch (Exception e) {
+                log.warn("Error creating ID for entity {} with nodeid: '{}': {} Skipping.", entity.name, entity.nodeId, e.getMessage());
+            }
+        }
+    }
+
+    private boolean isChanged(Entity entity, String name, URI contentUri) {
+        return !Objects.equals(entity.name, name) || !Objects.equals(entity.contentUri, contentUri);
+    }
+
+    private <T> T find(URI id, Class<T> type, Function<URI, T> lookup) {
+        if (id == null) return null;
+        if (existing.contains(id)) return existing.get(id, type);
+        T document = lookup.apply(id);
+        if (document != null) existing.put(id, document);
+        return document;
+    }
+
+    private void planResourceTypes(Entity entity, SyncContext context, List<Operation> operations) {
+        List<ResourceTypeIndexDocument> currentResourceTypes = context.getResourceTypes();
+        for (ResourceType resourceType : entity.resourceTypes) {
+            if (currentResourceTypes.stream().noneMatch(rt -> rt.name.equalsIgnoreCase(resourceType.name))) {
+                log.debug("Importing resource resource type connection: {}", resourceType.name);
+                operations.add(Operation.create("resource-resourcetypes", entity.getId(),
+                        () -> restClient.addResourceResourceType(entity.getId(), metadata.getResourceTypeId(resourceType)))
+                        .with("resourceType", resourceType.name)
+                        .onSuccess(location -> context.addResourceType(resourceType.name, getId(location))));
+            }
+        }
+
+        for (ResourceTypeIndexDocument resourceType : currentResourceTypes) {
+            if (entity.resourceTypes.stream().noneMatch(rt -> rt.name.equalsIgnoreCase(resourceType.name))) {
+                operations.add(Operation.delete("resource-resourcetypes", resourceType.connectionId, () -> {
+                    restClient.removeResourceResourceType(resourceType.connectionId);
+                    return null;
+                }).with("resourceType", resourceType.name).onSuccess(location -> context.removeResourceType(resourceType.connectionId)));
+            }
+        }
+    }
+
+    private void planResourceFilters(Entity entity, SyncContext context, List<Operation> operations) {
+        if (entity.filters.isEmpty()) return;
+
+        Entity subject = getSubject(entity);
+        List<FilterIndexDocument> currentFilters = context.getFilters();
+
+        for (Filter filter : entity.filters) {
+            if (currentFilters.stream().noneMatch(f -> f.name.equals(filter.name))) {
+                operations.add(Operation.create("resource-filters", entity.getId(),
+                        () -> restClient.addResourceFilter(entity.getId(), metadata.getFilterId(filter, subject.getId()), metadata.getRelevanceId(filter.relevance)))
+                        .with("filter", filter.name)
+                        .with("relevance", filter.relevance.name)
+                        .onSuccess(location -> {
+                            context.addFilter(filter.name, getId(location));
+                            log.debug("Added filter resource connection: {}", filter.name);
+                        }));
+            }
+        }
+    }
+
+    private void planTopicFilters(Entity entity, SyncContext context, List<Operation> operations) {
+        if (entity.filters.isEmpty()) return;
+
+        Entity subject = getSubject(entity);
+        List<FilterIndexDocument> currentFilters = context.getFilters();
+
+        for (Filter filter : entity.filters) {
+            if (currentFilters.stream().noneMatch(f -> f.name.equalsIgnoreCase(filter.name))) {
+                operations.add(Operation.create("topic-filters", entity.getId(),
+                        () -> restClient.addTopicFilter(entity.getId(), metadata.getFilterId(filter, subject.getId()), metadata.getRelevanceId(filter.relevance)))
+                        .with("filter", filter.name)
+                        .with("relevance", filter.relevance.name)
+                        .onSuccess(location -> {
+                            context.addFilter(filter.name, getId(location));
+                            log.debug("Added filter topic connection: {}", filter.name);
+                        }));
+            }
+        }
+    }
+
+    private void planSubjectTopic(Entity entity, boolean isNew, List<Operation> operations) {
+        SubjectTreeSnapshot subjectTree = getSubjectTree(entity.parent.getId());
+        Connection connection = isNew ? null : subjectTree.getSubjectTopic(entity.getId());
+        if (connection != null) {
+            if (connection.rank == entity.rank) return;
+            log.debug("Updating subject topic for topic: {}", entity.getId());
+            operations.add(Operation.update("subject-topics", connection.id, () -> {
+                restClient.updateSubjectTopic(connection.id, entity.rank, connection.primary);
+                return connection.id;
+            }).with("rank", entity.rank).onSuccess(location -> connection.rank = entity.rank));
+            return;
+        }
+        log.debug("Adding topic {} to subject {}", entity.getId(), entity.parent.getId());
+        operations.add(Operation.create("subject-topics", entity.getId(), () -> restClient.addSubjectTopic(entity.parent.getId(), entity.getId(), entity.rank))
+                .with("subject", entity.parent.getId())
+                .with("rank", entity.rank)
+                .onSuccess(location -> subjectTree.putSubjectTopic(new Connection(getId(location), entity.parent.getId(), entity.getId(), entity.rank, true))));
+        planUrlMapping(entity, operations);
+    }
+
+    private synchronized SubjectTreeSnapshot getSubjectTree(URI subjectId) {
+        if (!subjectTree.isFor(subjectId)) {
+            subjectTree = SubjectTreeSnapshot.load(restClient, connections, subjectId);
+        }
+        return subjectTree;
+    }
+
+    private void planTopicSubtopic(Entity entity, boolean isNew, List<Operation> operations) {
+        Connection connection = isNew ? null : subjectTree.getTopicSubtopic(entity.parent.getId(), entity.getId());
+        if (connection != null) {
+            if (connection.rank == entity.rank && connection.primary == entity.isPrimary) return;
+            log.debug("Updating topic subtopic connection for topic: {} with rank {}", entity.getId(), entity.rank);
+            operations.add(Operation.update("topic-subtopics", connection.id, () -> {
+                restClient.updateTopicSubtopic(connection.id, entity.rank, entity.isPrimary);
+                return connection.id;
+            }).with("rank", entity.rank).with("primary", entity.isPrimary)
+                    .onSuccess(location -> subjectTree.updateTopicSubtopic(connection, entity.rank, entity.isPrimary)));
+        } else {
+            log.debug("Adding topic subtopics connection for topic: {} with rank {}", entity.getId(), entity.rank);
+            operations.add(Operation.create("topic-subtopics", entity.getId(), () -> restClient.addTopicSubtopic(entity.parent.getId(), entity.getId(), entity.rank, entity.isPrimary))
+                    .with("topic", entity.parent.getId())
+                    .with("rank", entity.rank)
+                    .with("primary", entity.isPrimary)
+                    .onSuccess(location -> subjectTree.putTopicSubtopic(new Connection(getId(location), entity.parent.getId(), entity.getId(), entity.rank, entity.isPrimary))));
+            planUrlMapping(entity, operations);
+        }
+    }
+
+    private void planTopicResource(Entity entity, boolean isNew, List<Operation> operations) {
+        Connection connection = isNew ? null : topicResources.get(entity.parent.getId(), entity.getId());
+        if (connection != null) {
+            if (connection.rank == entity.rank && connection.primary == entity.isPrimary) return;
+            log.debug("Updating topic resource for resource: {}", entity.getId());
+            operations.add(Operation.update("topic-resources", connection.id, () -> {
+                restClient.updateTopicResource(connection.id, entity.rank, entity.isPrimary);
+                return connection.id;
+            }).with("rank", entity.rank).with("primary", entity.isPrimary)
+                    .onSuccess(location -> topicResources.update(connection, entity.rank, entity.isPrimary)));
+        } else {
+            log.debug("Adding topic resource for: {}", entity.getId());
+            operations.add(Operation.create("topic-resources", entity.getId(), () -> restClient.addTopicResource(entity.parent.getId(), entity.getId(), entity.rank, entity.isPrimary))
+                    .with("topic", entity.parent.getId())
+                    .with("rank", entity.rank)
+                    .with("primary", entity.isPrimary)
+                    .onSuccess(location -> topicResources.put(new Connection(getId(location), entity.parent.getId(), entity.getId(), entity.rank, entity.isPrimary))));
+            planUrlMapping(entity, operations);
+        }
+    }
+
+    private void planUrlMapping(Entity entity, List<Operation> operations) {
+        if (entity.oldUrl == null || currentSubject == null) return;
+
+        operations.add(Operation.update("url-mapping", entity.getId(), () -> {
+            restClient.addUrlMapping(entity.oldUrl, entity.getId(), currentSubject.getId());
+            return null;
+        }).with("url", entity.oldUrl));
+    }
+
+    private void planTranslations(Entity entity, SyncContext context, List<Operation> operations) {
+        if (entity.translations.isEmpty()) return;
+
+        Map<String, String> currentTranslations = context.getTranslations();
+        for (Map.Entry<String, Translation> entry : entity.translations.entrySet()) {
+            if (Objects.equals(currentTranslations.get(entry.getKey()), entry.getValue().name)) continue;
+
+            operations.add(Operation.update("translations", entity.getId(), () -> {
+                restClient.addTranslation(restClient.getLocation(entity.getId(), entity.type), entry.getKey(), entry.getValue());
+                return null;
+            }).with("language", entry.getKey()).with("name", entry.getValue().name)
+                    .onSuccess(location -> context.putTranslation(entry.getKey(), entry.getValue().name)));
+        }
+    }
+
+    private Entity getSubject(Entity entity) {
+        while (true) {
+            if (SUBJECT_TYPE.equals(entity.type)) return entity;
+            if (entity.parent == null) return null;
+            entity = entity.parent;
+        }
+    }
+
+    static URI getSubjectId(Entity entity) {
+        for (; entity != null; entity = entity.parent) {
+            if (SUBJECT_TYPE.equals(entity.type)) return entity.getId();
+        }
+        return null;
+    }
+
+    static URI getId(URI location) {
+        String id = substringAfterLast(location.toString(), "/");
+        return URI.create(id);
+    }
+}
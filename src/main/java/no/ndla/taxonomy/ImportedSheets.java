@@ -0,0 +1,126 @@
+package no.ndla.taxonomy;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The sheets a batch has imported into one environment, so the next batch into it can skip the sheets that have not
+ * changed since.
+ * <p>
+ * Kept in a file next to the batch, e.g. <code>imported.api.test.ndla.no_443.tsv</code>, with one tab separated line
+ * per subject: subject URN, hash of the job, sheet, when the import finished and the version of the importer. The
+ * hash covers the content of the sheet, the subject name of the job and whether the subject is deleted first, so
+ * renaming a subject in the manifest or importing it with <code>-d</code> is a change too. A subject is recorded when
+ * its sheet has been imported without failures, and is unchanged as long as its job has the same hash. The file is
+ * rewritten after each subject, so a batch that stops half way keeps the subjects it finished.
+ */
+public class ImportedSheets {
+    private final Path file;
+    private final Map<URI, Imported> imported = new TreeMap<>();
+
+    public static class Imported {
+        public final String hash;
+        public final String sheet;
+        public final String finished;
+        public final String version;
+
+        Imported(String hash, String sheet, String finished, String version) {
+            this.hash = hash;
+            this.sheet = sheet;
+            this.finished = finished;
+            this.version = version;
+        }
+    }
+
+    private ImportedSheets(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @param batch the directory of sheets or the manifest of the batch
+     * @return the file of the environment next to the batch
+     */
+    public static Path getFile(Path batch, String endpoint) {
+        Path directory = Files.isDirectory(batch) ? batch : batch.toAbsolutePath().getParent();
+        return directory.resolve("imported." + TaxonomyMirror.getEnvironmentName(endpoint) + ".tsv");
+    }
+
+    public static ImportedSheets read(Path file) throws IOException {
+        ImportedSheets sheets = new ImportedSheets(file);
+        if (!Files.exists(file)) return sheets;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] columns = line.split("\t");
+            if (columns.length != 5) continue;
+            sheets.imported.put(URI.create(columns[0]), new Imported(columns[1], columns[2], columns[3], columns[4]));
+        }
+        return sheets;
+    }
+
+    /**
+     * @return how the subject was last imported, if by a job with the given hash, otherwise null
+     */
+    public synchronized Imported getUnchanged(URI subjectId, String hash) {
+        Imported last = imported.get(subjectId);
+        return last != null && last.hash.equals(hash) ? last : null;
+    }
+
+    /**
+     * Records that the subject has been imported by a job with the given hash.
+     */
+    public synchronized void record(URI subjectId, String hash, Path sheet) throws IOException {
+        imported.put(subjectId, new Imported(hash, sheet.getFileName().toString(), Instant.now().toString(), getToolVersion()));
+
+        StringBuilder content = new StringBuilder();
+        imported.forEach((id, sheetImported) -> content.append(id).append('\t').append(sheetImported.hash).append('\t')
+                .append(sheetImported.sheet).append('\t').append(sheetImported.finished).append('\t').append(sheetImported.version).append('\n'));
+        Path written = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(written, content.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param subjectName the subject name of the job, or null if it has none
+     * @param deleteSubject whether the subject is deleted before it is imported
+     * @return the SHA-1 of the content of the sheet, the subject name and whether the subject is deleted
+     */
+    public static String getHash(Path sheet, String subjectName, boolean deleteSubject) throws IOException {
+        return ImportJournal.sha1(getHash(sheet) + "\n" + subjectName + "\n" + deleteSubject);
+    }
+
+    /**
+     * @return the SHA-1 of the content of the sheet
+     */
+    static String getHash(Path sheet) throws IOException {
+        try (DigestInputStream input = new DigestInputStream(Files.newInputStream(sheet), MessageDigest.getInstance("SHA-1"))) {
+            byte[] buffer = new byte[8192];
+            while (input.read(buffer) >= 0) {
+                // the digest is updated as the sheet is read
+            }
+            StringBuilder hash = new StringBuilder();
+            for (byte b : input.getMessageDigest().digest()) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the version of the importer, as built, or "unknown" when not run from the jar
+     */
+    static String getToolVersion() {
+        String version = ImportedSheets.class.getPackage().getImplementationVersion();
+        return version != null ? version : "unknown";
+    }
+}
@@ -1,402 +1,373 @@
 package no.ndla.taxonomy;
 
+import no.ndla.taxonomy.client.AsyncTaxonomyRestClient;
 import no.ndla.taxonomy.client.TaxonomyRestClient;
-import no.ndla.taxonomy.client.relevances.RelevanceIndexDocument;
-import no.ndla.taxonomy.client.resources.FilterIndexDocument;
-import no.ndla.taxonomy.client.resources.ResourceIndexDocument;
-import no.ndla.taxonomy.client.resources.ResourceTypeIndexDocument;
-import no.ndla.taxonomy.client.subjectTopics.SubjectTopicIndexDocument;
 import no.ndla.taxonomy.client.subjects.TopicIndexDocument;
-import no.ndla.taxonomy.client.topicResources.TopicResourceIndexDocument;
-import no.ndla.taxonomy.client.topicSubtopics.TopicSubtopicIndexDocument;
 import no.ndla.taxonomy.client.topics.SubtopicIndexDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-
-import static org.apache.commons.lang3.StringUtils.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Importer {
+    private static final Logger log = LoggerFactory.getLogger("importer");
+
     public static final String SUBJECT_TYPE = "Subject";
     public static final String TOPIC_TYPE = "Topic";
     public static final String RESOURCE_TYPE = "Resource";
     public static final String KJERNESTOFF = "Kjernestoff";
     public static final String TILLEGGSSSTOFF = "Tilleggsstoff";
 
-    private Entity currentSubject;
-
-    private static final Map<String, URI> resourceTypeCache = new HashMap<>();
-    private static final Map<String, URI> filterCache = new HashMap<>();
-    private static final Map<String, URI> relevanceCache = new HashMap<>();
-
-    private TaxonomyRestClient restClient;
+    public static final int DEFAULT_PARALLEL_CALLS = 4;
+    public static final int DEFAULT_SUMMARY_INTERVAL = 100;
+
+    private final TaxonomyRestClient restClient;
+    private final AsyncTaxonomyRestClient asyncClient;
+    private final ImportPlanner planner;
+    private final MetadataRegistry metadata;
+    private final ConnectionRegistry connections;
+    private final int parallelCalls;
+    private final Map<Operation.Action, Integer> executed = new ConcurrentHashMap<>();
+    private final AtomicInteger entityCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final long started = System.nanoTime();
+    private int summaryInterval = DEFAULT_SUMMARY_INTERVAL;
+    private ImportJournal journal;
+    private DryRun dryRun;
+    private Path mirrorDirectory;
+    private long mirrorMaxAgeMillis;
+    private int mirrorSpotChecks;
+    private Path hashDirectory;
+    private SubtreeHashes subtreeHashes;
 
     public Importer(TaxonomyRestClient restClient) {
-        this.restClient = restClient;
+        this(restClient, DEFAULT_PARALLEL_CALLS);
     }
 
-    void doImport(Entity entity) {
-        if (entity == null) return;
-
-        if (entity.type.equals(SUBJECT_TYPE)) {
-            currentSubject = entity;
-        }
-
-        URI location = importEntity(entity);
-        System.out.println("Entity imported: " + entity.nodeId);
-        entity.setId(getId(location).toString());
-
-        if (entity.parent != null && entity.parent.type.equals(SUBJECT_TYPE) && entity.type.equals(TOPIC_TYPE)) {
-            importSubjectTopic(entity);
-        } else if (entity.parent != null && entity.parent.type.equals(TOPIC_TYPE) && entity.type.equals(TOPIC_TYPE)) {
-            importTopicSubtopic(entity);
-        } else if (entity.parent != null && entity.parent.type.equals(TOPIC_TYPE) && entity.type.equals(RESOURCE_TYPE)) {
-            importTopicResource(entity);
-        }
+    /**
+     * @param parallelCalls how many of an entity's connections, filters and translations may be written at once
+     */
+    public Importer(TaxonomyRestClient restClient, int parallelCalls) {
+        this(restClient, parallelCalls, new MetadataRegistry(restClient));
+    }
 
-        for (Map.Entry<String, Translation> entry : entity.translations.entrySet()) {
-            restClient.addTranslation(location, entry.getKey(), entry.getValue());
-        }
+    /**
+     * @param metadata the resource types, relevances and filters, shared with the importers of other subjects
+     */
+    public Importer(TaxonomyRestClient restClient, int parallelCalls, MetadataRegistry metadata) {
+        this(restClient, parallelCalls, metadata, new ConnectionRegistry(restClient));
     }
 
-    private URI getId(URI location) {
-        String id = substringAfterLast(location.toString(), "/");
-        return URI.create(id);
+    /**
+     * @param connections the subject topic and topic subtopic connections, shared with the importers of other subjects
+     */
+    public Importer(TaxonomyRestClient restClient, int parallelCalls, MetadataRegistry metadata, ConnectionRegistry connections) {
+        this.restClient = restClient;
+        this.asyncClient = new AsyncTaxonomyRestClient(restClient, parallelCalls);
+        this.planner = new ImportPlanner(restClient, metadata, connections);
+        this.metadata = metadata;
+        this.connections = connections;
+        this.parallelCalls = parallelCalls;
     }
 
-    private void importTopicResource(Entity entity) {
-        try {
-            boolean currentTopicConnectionFound = false;
-            no.ndla.taxonomy.client.topics.ResourceIndexDocument[] resourcesForTopic = restClient.getResourcesForTopic(entity.parent.getId());
-            for (no.ndla.taxonomy.client.topics.ResourceIndexDocument resource : resourcesForTopic) {
-                if (resource.id.equals(entity.getId())) {
-                    TopicResourceIndexDocument topicResource = restClient.getTopicResource(resource.connectionId);
-                    System.out.println("Updating topic resource for resource: " + entity.getId());
-                    topicResource.rank = entity.rank;
-                    topicResource.topicid = entity.parent.getId();
-                    topicResource.primary = entity.isPrimary;
-                    restClient.updateTopicResource(topicResource);
-                    currentTopicConnectionFound = topicResource.topicid.equals(entity.parent.getId());
-                }
-            }
-            if (!currentTopicConnectionFound) {
-                System.out.println("Adding topic resource for: " + entity.getId());
-                restClient.addTopicResource(entity.parent.getId(), entity.getId(), entity.rank, entity.isPrimary);
-                restClient.addUrlMapping(entity.oldUrl, entity.getId(), this.currentSubject.getId());
-            }
-        } catch (Exception e) {
-            System.out.println("entity failed: " + entity.getId());
-            e.printStackTrace();
-        }
+    /**
+     * @param summaryInterval log a summary every this many entities, 0 to only log it at the end
+     */
+    public void setSummaryInterval(int summaryInterval) {
+        this.summaryInterval = summaryInterval;
     }
 
-    private void importTopicSubtopic(Entity entity) {
-        try {
-            boolean hasFoundCurrentTopicConnection = false;
-            if (currentSubject != null) {
-                //!!The code below will not succeed if a subtopic has several parents (both primary and secondary)
-                //Instead of relying on edges from the recursive getTopicsForSubject, which only gives primary connections
-                //another solution must be made - maybe a new api call.
-                TopicIndexDocument[] topicsForSubject = restClient.getTopicsForSubject(currentSubject.getId());
-                for (TopicIndexDocument topic : topicsForSubject) {
-                    if (topic.id.equals(entity.getId())) {
-                        TopicSubtopicIndexDocument topicSubtopic = restClient.getTopicSubtopic(topic.connectionId);
-                        System.out.println("Updating topic subtopic connection for topic: " + entity.getId() + " with rank " + entity.rank);
-                        topicSubtopic.rank = entity.rank;
-                        topicSubtopic.primary = entity.isPrimary;
-                        restClient.updateTopicSubtopic(topicSubtopic);
-                        if (!hasFoundCurrentTopicConnection) {
-                            hasFoundCurrentTopicConnection = topicSubtopic.topicid.equals(entity.parent.getId());
-                        }
-                    }
-                }
-            }
-            if (!hasFoundCurrentTopicConnection) {
-                System.out.println("Adding topic subtopics connection for topic: " + entity.getId() + " with rank " + entity.rank);
-                restClient.addTopicSubtopic(entity.parent.getId(), entity.getId(), entity.rank, entity.isPrimary);
-                restClient.addUrlMapping(entity.oldUrl, entity.getId(), this.currentSubject.getId());
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * @param journal records each topic and resource once it has been imported completely, so a later run can resume
+     */
+    public void setJournal(ImportJournal journal) {
+        this.journal = journal;
     }
 
-    private URI importEntity(Entity entity) {
-        switch (entity.type) {
-            case SUBJECT_TYPE:
-                return importSubject(entity);
-            case TOPIC_TYPE:
-                return importTopic(entity);
-            default:
-                return importResource(entity);
-        }
+    /**
+     * @param dryRun plans the writes of the import instead of making them, including those of the shared metadata registry
+     */
+    public void setDryRun(DryRun dryRun) {
+        this.dryRun = dryRun;
+        metadata.setDryRun(dryRun);
     }
 
-    private URI importResource(Entity entity) {
-        if (null == entity.getId()) {
-            if (isNotEmpty(entity.nodeId)) {
-                try {
-                    entity.setId("urn:resource:1:" + entity.nodeId);
-                } catch (Exception e) {
-                    System.out.println("Error creating ID for entity " + entity.name + " with nodeid: '" + entity.nodeId + "': " + e.getMessage() + " Skipping.");
-                }
-            } else {
-                System.out.println("Unable to create ID for entity " + entity.name + ". Skipping.");
-                return null;
-            }
-        }
+    /**
+     * @param directory keeps a {@link TaxonomyMirror} per environment and subject, so the next import of a subject needs not read it all again
+     * @param maxAgeMillis the age of the oldest mirror to use
+     * @param spotChecks the number of entities of a mirror to compare with the API before using it
+     */
+    public void setMirror(Path directory, long maxAgeMillis, int spotChecks) {
+        this.mirrorDirectory = directory;
+        this.mirrorMaxAgeMillis = maxAgeMillis;
+        this.mirrorSpotChecks = spotChecks;
+    }
 
+    /**
+     * Starts from the mirror of the subject, if there is one that agrees with the API, and removes it, so an import that
+     * fails leaves no mirror behind. Does nothing in a dry run.
+     *
+     * @return true if the mirror was restored
+     */
+    public boolean restoreMirror(URI subjectId) {
+        if (mirrorDirectory == null || dryRun != null) return false;
+
+        Path file = TaxonomyMirror.getFile(mirrorDirectory, restClient.getUrlBase(), subjectId);
+        TaxonomyMirror mirror;
         try {
-            ResourceIndexDocument resource = restClient.getResource(entity.getId());
-            URI location = updateResource(entity, resource);
-            System.out.println("Updated resource: " + entity.getId());
-            //get rts for resource, check if replace should be done
-            updateResourceResourceTypeConnections(entity);
-            updateFiltersForResource(entity);
-            return location;
-        } catch (Exception e) {
-            System.out.println("Creating resource: " + entity.getId() + " with nodeId: " + entity.nodeId);
-            URI resourceURI = createResource(entity);
-            updateFiltersForResource(entity);
-            return resourceURI;
+            mirror = TaxonomyMirror.read(file);
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not read the mirror {}, reading {} from the API: {}", file, subjectId, e.toString());
+            return false;
         }
-    }
-
-    private void updateFiltersForResource(Entity entity) {
-        Entity subject = getSubject(entity);
-
-        List<FilterIndexDocument> currentFilters = Arrays.asList(restClient.getFiltersForResource(entity.getId()));
-
-        for (Filter filter : entity.filters) {
-            if (currentFilters.stream().noneMatch(f -> f.name.equals(filter.name))) {
-                addFilterToResource(entity.getId(), filter, subject.getId());
-                System.out.println("Added filter resource connection: " + filter.name);
-            }
+        if (mirror == null) {
+            log.info("No mirror of {} in {}, reading it from the API", subjectId, file);
+            return false;
         }
-    }
 
-    private void updateFiltersForTopic(Entity entity) {
-        Entity subject = getSubject(entity);
-        List<FilterIndexDocument> currentFilters = Arrays.asList(restClient.getFiltersForTopic(entity.getId()));
-
-        for (Filter filter : entity.filters) {
-            if (currentFilters.stream().noneMatch(f -> f.name.equalsIgnoreCase(filter.name))) {
-                addFilterToTopic(entity.getId(), filter, subject.getId());
-                System.out.println("Added filter topic connection: " + filter.name);
-            }
+        long start = System.nanoTime();
+        String reason = mirror.check(restClient, subjectId, mirrorMaxAgeMillis, mirrorSpotChecks);
+        if (reason != null) {
+            log.info("Not using the mirror of {}, reading it from the API: {}", subjectId, reason);
+            return false;
         }
+        planner.restore(mirror);
+        log.info("Restored {} entities and {} connections of {} from {}, checked in {} ms", mirror.entities.size(), mirror.getConnections(),
+                subjectId, file, (System.nanoTime() - start) / 1_000_000);
+        return true;
     }
 
-    private void addFilterToResource(URI resourceId, Filter filter, URI subjectId) {
-        URI filterId = getOrCreateFilterId(filter, subjectId);
-        URI relevanceId = getOrCreateRelevanceId(filter.relevance);
-        restClient.addResourceFilter(resourceId, filterId, relevanceId);
+    /**
+     * Removes the mirror of the subject, e.g. when the subject has been deleted.
+     */
+    public void discardMirror(URI subjectId) throws IOException {
+        if (mirrorDirectory == null || dryRun != null) return;
+        Files.deleteIfExists(TaxonomyMirror.getFile(mirrorDirectory, restClient.getUrlBase(), subjectId));
     }
 
-    private void addFilterToTopic(URI topicId, Filter filter, URI subjectId) {
-        URI filterId = getOrCreateFilterId(filter, subjectId);
-        URI relevanceId = getOrCreateRelevanceId(filter.relevance);
-        restClient.addTopicFilter(topicId, filterId, relevanceId);
-    }
-
-
-    private URI getOrCreateRelevanceId(Relevance relevance) {
-        updateRelevanceCache();
-        if (!relevanceCache.containsKey(relevance.name)) {
-            if (relevance.name.equals(KJERNESTOFF)) {
-                relevance.id = URI.create("urn:relevance:core");
-            } else if (relevance.name.equals(TILLEGGSSSTOFF)) {
-                relevance.id = URI.create("urn:relevance:supplementary");
-            }
-
-            URI location = restClient.createRelevance(relevance.id, relevance.name);
-            URI id = getId(location);
-            relevance.id = id;
-            relevanceCache.put(relevance.name, id);
+    /**
+     * Saves what the importer knows about the subject to its mirror, if every entity was imported.
+     */
+    public void saveMirror(URI subjectId) {
+        if (mirrorDirectory == null || dryRun != null) return;
+        if (failedCount.get() > 0) {
+            log.info("Not saving the mirror of {}, since {} entities failed", subjectId, failedCount.get());
+            return;
         }
-        return relevanceCache.get(relevance.name);
-    }
 
-    private void updateRelevanceCache() {
-        if (!relevanceCache.isEmpty()) return;
-
-        RelevanceIndexDocument[] relevances = restClient.getRelevances();
-        for (RelevanceIndexDocument relevance : relevances) {
-            relevanceCache.put(relevance.name, relevance.id);
+        TaxonomyMirror mirror = planner.save(restClient.getUrlBase(), subjectId);
+        if (mirror == null) return;
+        Path file = TaxonomyMirror.getFile(mirrorDirectory, restClient.getUrlBase(), subjectId);
+        try {
+            mirror.write(file);
+            log.info("Saved {} entities and {} connections of {} to {}", mirror.entities.size(), mirror.getConnections(), subjectId, file);
+        } catch (IOException e) {
+            log.warn("Could not save the mirror {}: {}", file, e.toString());
         }
     }
 
-    private URI getOrCreateFilterId(Filter filter, URI subjectId) {
-        updateFilterCache(subjectId);
-        if (!filterCache.containsKey(filter.name)) {
-            URI location = restClient.createFilter(filter.id, filter.name, subjectId);
-            URI id = getId(location);
-            filter.id = id;
-            filterCache.put(filter.name, id);
-        }
-        return filterCache.get(filter.name);
+    /**
+     * @param directory keeps the {@link SubtreeHashes} of the last import of each subject per environment, so the next import
+     *                  of a subject can skip the subtrees that have not changed
+     */
+    public void setSubtreeHashes(Path directory) {
+        this.hashDirectory = directory;
     }
 
-    private void updateFilterCache(URI subjectId) {
-        if (!filterCache.isEmpty()) return;
+    /**
+     * Leaves out the level 1 and level 2 topics whose subtree is the same as in the last import of the subject without failures,
+     * and everything below them. Does nothing in a dry run.
+     *
+     * @param parsed all entities of the sheet, in sheet order
+     * @param entities the entities left to import
+     * @return the entities left to import, in sheet order
+     */
+    public List<Entity> skipUnchanged(URI subjectId, List<Entity> parsed, List<Entity> entities) throws IOException {
+        if (hashDirectory == null || dryRun != null) return entities;
+
+        subtreeHashes = SubtreeHashes.compute(parsed);
+        SubtreeHashes previous = SubtreeHashes.read(SubtreeHashes.getFile(hashDirectory, restClient.getUrlBase(), subjectId));
+        return subtreeHashes.removeUnchanged(entities, previous);
+    }
 
-        no.ndla.taxonomy.client.subjects.FilterIndexDocument[] filters = restClient.getFiltersForSubject(subjectId);
-        for (no.ndla.taxonomy.client.subjects.FilterIndexDocument filter : filters) {
-            filterCache.put(filter.name, filter.id);
-        }
+    /**
+     * Removes the hashes of the subject, e.g. when the subject has been deleted, so no subtree is skipped.
+     */
+    public void discardSubtreeHashes(URI subjectId) throws IOException {
+        if (hashDirectory == null || dryRun != null) return;
+        Files.deleteIfExists(SubtreeHashes.getFile(hashDirectory, restClient.getUrlBase(), subjectId));
     }
 
+    /**
+     * Saves the hashes of the subtrees of the sheet, if every entity was imported.
+     */
+    public void saveSubtreeHashes(URI subjectId) throws IOException {
+        if (subtreeHashes == null || failedCount.get() > 0) return;
 
-    private Entity getSubject(Entity entity) {
-        while (true) {
-            if (SUBJECT_TYPE.equals(entity.type)) return entity;
-            if (entity.parent == null) return null;
-            entity = entity.parent;
-        }
+        Path file = SubtreeHashes.getFile(hashDirectory, restClient.getUrlBase(), subjectId);
+        subtreeHashes.write(file);
+        log.info("Saved the hashes of {} subtrees of {} to {}", subtreeHashes.size(), subjectId, file);
     }
 
-    private void updateResourceResourceTypeConnections(Entity entity) {
-        List<ResourceTypeIndexDocument> currentResourceTypes = Arrays.asList(restClient.getResourceTypesForResource(entity.getId()));
+    /**
+     * @return true if the journal records entities imported by an earlier run
+     */
+    public boolean isResuming() {
+        return journal != null && journal.size() > 0;
+    }
 
-        for (ResourceType resourceType : entity.resourceTypes) {
-            if (currentResourceTypes.stream().noneMatch(rt -> rt.name.equalsIgnoreCase(resourceType.name))) {
-                addResourceTypeToResource(entity.getId(), resourceType);
-                System.out.println("Importing resource resource type connection: " + resourceType.name);
-            }
-        }
+    /**
+     * Leaves out the entities the journal records as imported with the same parent and data, giving them their URNs
+     * so the entities below them can be connected, and so the rest of their rows only need their connections.
+     *
+     * @return the entities left to import, in sheet order
+     */
+    public List<Entity> skipCompleted(List<Entity> entities) {
+        if (journal == null || journal.size() == 0) return entities;
 
-        for (ResourceTypeIndexDocument resourceType : currentResourceTypes) {
-            if (entity.resourceTypes.stream().noneMatch(rt -> rt.name.equalsIgnoreCase(resourceType.name))) {
-                removeResourceTypeFromResource(resourceType.connectionId);
+        List<Entity> remaining = new ArrayList<>();
+        for (Entity entity : entities) {
+            ImportPlanner.assignId(entity);
+            URI id = journal.getCompleted(entity);
+            if (id == null) {
+                remaining.add(entity);
+                continue;
             }
+            entity.setId(id);
+            planner.markSynced(entity);
         }
+        log.info("Resuming import, {} of {} entities were imported by an earlier run", entities.size() - remaining.size(), entities.size());
+        return remaining;
     }
 
-    private void removeResourceTypeFromResource(URI connectionId) {
-        restClient.removeResourceResourceType(connectionId);
+    /**
+     * Looks up whether the entities of a sheet exist before they are imported, so importing them needs no lookup per entity.
+     * The entities are looked up concurrently, as many at a time as calls are made per entity. Entities the planner already
+     * knows, e.g. from a mirror, are not looked up again.
+     */
+    public void classify(List<Entity> entities) {
+        long start = System.nanoTime();
+        ExistenceIndex existing = planner.getExistenceIndex();
+        int lookedUp = existing.lookUp(asyncClient, entities);
+        log.info("Looked up {} entities in {} ms, {} known in all: {} to create, {} to update", lookedUp, (System.nanoTime() - start) / 1_000_000,
+                existing.size(), existing.getAbsent(), existing.size() - existing.getAbsent());
     }
 
-    private URI updateResource(Entity entity, ResourceIndexDocument resource) {
-        if (entity.contentUri == null) entity.contentUri = resource.contentUri;
-        if (entity.name == null) entity.name = resource.name;
-        URI location = restClient.updateEntity(entity.getId(), entity.name, entity.contentUri, RESOURCE_TYPE);
-
-        ResourceTypeIndexDocument[] resourceTypesForResource = restClient.getResourceTypesForResource(entity.getId());
-        if (resourceTypesForResource.length == 0) addResourceTypesToResource(entity.getId(), entity.resourceTypes);
-
-        return location;
+    /**
+     * Creates the resource types, relevances and filters of a sheet before its entities are imported.
+     */
+    public void provision(List<Entity> entities) {
+        metadata.provision(entities, asyncClient);
     }
 
-    private URI createResource(Entity entity) {
-        URI location = restClient.createResource(entity.getId(), entity.name, entity.contentUri);
-        entity.setId(getId(location).toString());
-        System.out.println("Added resource: " + entity.getId());
-        addResourceTypesToResource(entity.getId(), entity.resourceTypes);
-        return location;
+    void doImport(Entity entity) {
+        doImport(entity, false);
     }
 
-    private void addResourceTypesToResource(URI resourceId, List<ResourceType> resourceTypes) {
-        for (ResourceType resourceType : resourceTypes) {
-            addResourceTypeToResource(resourceId, resourceType);
-        }
-    }
+    private void doImport(Entity entity, boolean forceUpdate) {
+        if (entity == null) return;
 
-    private void addResourceTypeToResource(URI resourceId, ResourceType resourceType) {
-        URI resourceTypeId = getOrCreateResourceTypeId(resourceType);
-        restClient.addResourceResourceType(resourceId, resourceTypeId);
+        // a forced write only rebuilds the URL cache after the journal is closed
+        String hash = journal != null && !forceUpdate ? ImportJournal.getHash(entity) : null;
+        List<Operation> operations = null;
+        try {
+            operations = planner.plan(entity, forceUpdate);
+        } catch (RuntimeException e) {
+            log.error("Could not plan {}", entity.getId() != null ? entity.getId() : entity.name, e);
+        }
+        if (operations != null && execute(entity, operations)) {
+            planner.markSynced(entity);
+            if (hash != null) journal.record(entity, hash);
+        } else {
+            failedCount.incrementAndGet();
+        }
+        int count = entityCount.incrementAndGet();
+        log.debug("Entity imported: {}", entity.nodeId);
+        if (summaryInterval > 0 && count % summaryInterval == 0) {
+            log.info(getSummary());
+        }
     }
 
-    private URI getOrCreateResourceTypeId(ResourceType resourceType) {
-        updateResourceTypeCache();
-        if (!resourceTypeCache.containsKey(resourceType.name)) {
-            if (isNotBlank(resourceType.parentName)) {
-                resourceType.parentId = resourceTypeCache.get(resourceType.parentName);
+    /**
+     * Runs the required operations in order, then the rest of them side by side, since they do not depend on each other.
+     * In a dry run they are only planned, in order.
+     *
+     * @return true if all of them succeeded
+     */
+    private boolean execute(Entity entity, List<Operation> operations) {
+        if (dryRun != null) {
+            for (Operation operation : operations) {
+                dryRun.run(entity, operation);
+                executed.merge(operation.action, 1, Integer::sum);
             }
-            System.out.println("Creating resource type " + resourceType.name + " with id: " + resourceType.id);
-            URI location = restClient.createResourceType(resourceType.id, resourceType.name, resourceType.parentId);
-            URI id = getId(location);
-            resourceType.id = id;
-            resourceTypeCache.put(resourceType.name, id);
+            return true;
         }
-        return resourceTypeCache.get(resourceType.name);
-    }
-
-    private void updateResourceTypeCache() {
-        if (!resourceTypeCache.isEmpty()) return;
 
-        no.ndla.taxonomy.client.resourceTypes.ResourceTypeIndexDocument[] resourceTypes = restClient.getResourceTypes();
-        for (no.ndla.taxonomy.client.resourceTypes.ResourceTypeIndexDocument resourceType : resourceTypes) {
-            resourceTypeCache.put(resourceType.name, resourceType.id);
-            for (no.ndla.taxonomy.client.resourceTypes.ResourceTypeIndexDocument subtype : resourceType.subtypes) {
-                resourceTypeCache.put(subtype.name, subtype.id);
+        Map<Operation, CompletableFuture<URI>> pending = new LinkedHashMap<>();
+        boolean failed = false;
+        for (Operation operation : operations) {
+            if (operation.isRequired()) {
+                operation.execute();
+                executed.merge(operation.action, 1, Integer::sum);
+            } else {
+                pending.put(operation, asyncClient.submit(operation::execute));
             }
         }
-    }
 
-    private void importSubjectTopic(Entity entity) {
-        try {
-            TopicIndexDocument[] topicsForSubject = restClient.getTopicsForSubject(entity.parent.getId());
-            for (TopicIndexDocument topic : topicsForSubject) {
-                if (topic.id.equals(entity.getId())) {
-                    SubjectTopicIndexDocument subjectTopic = restClient.getSubjectTopic(topic.connectionId);
-                    subjectTopic.rank = entity.rank;
-                    System.out.println("Updating subject topic for topic: " + entity.getId());
-                    restClient.updateSubjectTopic(subjectTopic);
-                    return;
-                }
+        for (Map.Entry<Operation, CompletableFuture<URI>> entry : pending.entrySet()) {
+            try {
+                AsyncTaxonomyRestClient.join(entry.getValue());
+                executed.merge(entry.getKey().action, 1, Integer::sum);
+            } catch (RuntimeException e) {
+                log.warn("Operation failed: {}", entry.getKey(), e);
+                failed = true;
             }
-            System.out.println("Adding topic " + entity.getId() + " to subject " + entity.parent.getId());
-            restClient.addSubjectTopic(entity.parent.getId(), entity.getId(), entity.rank);
-            restClient.addUrlMapping(entity.oldUrl, entity.getId(), this.currentSubject.getId());
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        return !failed;
     }
 
-    private URI importTopic(Entity entity) {
-        URI location;
-        try {
-            restClient.getTopic(entity.getId());
-            System.out.println("Importing topic");
-            location = restClient.updateEntity(entity.getId(), entity.name, entity.contentUri, TOPIC_TYPE);
-            System.out.println("Updated topic: " + entity.getId());
-        } catch (Exception e) {
-            if (entity.nodeId != null && entity.getId() == null) {
-                entity.setId("urn:topic:1:" + entity.nodeId);
-                try {
-                    restClient.getTopic(entity.getId());
-                    System.out.println("Updating topic: " + entity.getId());
-                    location = restClient.updateEntity(entity.getId(), entity.name, entity.contentUri, TOPIC_TYPE);
-                } catch (Exception ex) {
-                    System.out.println("Creating topic: " + entity.getId());
-                    location = restClient.createTopic(entity.getId(), entity.name, entity.contentUri);
-                }
-            } else {
-                System.out.println("Creating topic: " + entity.getId());
-                location = restClient.createTopic(entity.getId(), entity.name, entity.contentUri);
-            }
-        }
-        updateFiltersForTopic(entity);
-        return location;
+    public void doImportWithoutBatchmode(Entity entity) {
+        restClient.setNoBatchMode();
+        doImport(entity, true);
     }
 
-    private URI importSubject(Entity entity) {
-        URI location;
+    /**
+     * @return the number of entities that could not be imported
+     */
+    public int getFailedCount() {
+        return failedCount.get();
+    }
 
-        try {
-            restClient.getSubject(entity.getId());
-            System.out.println("Updating subject: " + entity.getId());
-            location = restClient.updateEntity(entity.getId(), entity.name, entity.contentUri, SUBJECT_TYPE);
-        } catch (Exception e) {
-            System.out.println("Creating subject: " + entity.getId() + " with name " + entity.name);
-            location = restClient.createSubject(entity.getId(), entity.name, entity.contentUri);
-        }
-        return location;
+    public String getSummary() {
+        int count = entityCount.get();
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return "Imported " + count + " entities (" + String.format("%.1f", count / seconds) + "/s): "
+                + executed.getOrDefault(Operation.Action.CREATE, 0) + " creates, "
+                + executed.getOrDefault(Operation.Action.UPDATE, 0) + " updates, "
+                + executed.getOrDefault(Operation.Action.DELETE, 0) + " deletes";
     }
 
-    public void doImportWithoutBatchmode(Entity entity) {
-        restClient.setNoBatchMode();
-        doImport(entity);
+    /**
+     * Deletes the topics and resources of a subject, reading the tree and deleting what it finds concurrently,
+     * as many calls at a time as are made per entity.
+     *
+     * @return the number of topics and resources deleted
+     */
+    public int deleteTopicsAndResources(URI subjectId) {
+        SubjectTeardown teardown = new SubjectTeardown(asyncClient, parallelCalls);
+        try {
+            return teardown.delete(subjectId);
+        } finally {
+            teardown.getDeletedTopics().forEach(connections::removeTopic);
+        }
     }
 
     public List<Entity> listResourcesAndTopicsForSubjects(URI subjectUri) {
@@ -459,9 +430,9 @@ public class Importer {
     }
 
     public void deleteList(List<Entity> entities) {
-        System.out.println("Deleting list of " + entities.size() + " entities");
+        log.info("Deleting list of {} entities", entities.size());
         for (Entity entity : entities) {
-            System.out.println(entity.toString());
+            log.debug("Deleting {}", entity);
             restClient.removeEntity(entity);
         }
     }
@@ -2,25 +2,43 @@ package no.ndla.taxonomy;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import no.ndla.taxonomy.client.AdaptiveConcurrencyLimiter;
+import no.ndla.taxonomy.client.CallMetrics;
+import no.ndla.taxonomy.client.PooledHttpRequestFactory;
+import no.ndla.taxonomy.client.RateLimiter;
+import no.ndla.taxonomy.client.ResponseSnapshot;
+import no.ndla.taxonomy.client.RetryInterceptor;
 import no.ndla.taxonomy.client.TaxonomyRestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.web.client.RestTemplate;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @SpringBootApplication
 public class ImporterApplication {
-
+    private static final Logger log = LoggerFactory.getLogger("importer");
 
     @Parameter(names = {"-e", "--endpoint"})
     private static String endpoint = "http://localhost:5000";
 
-    @Parameter(names = {"-i", "--subject-id"}, required = true)
+    @Parameter(names = {"-i", "--subject-id"})
     private static String subjectId;
 
     @Parameter(names = {"-n", "--subject-name"})
@@ -38,6 +56,87 @@ public class ImporterApplication {
     @Parameter(names = {"-cs", "--client-secret"})
     private static String clientSecret;
 
+    @Parameter(names = {"-b", "--batch"}, description = "Directory of sheets named <subject number>.tsv, or a manifest with one line per subject: sheet, subject URN, subject name and optionally log file, separated by tabs")
+    private static String batch;
+
+    @Parameter(names = {"-ps", "--parallel-subjects"}, description = "Number of subjects to import in parallel in batch mode")
+    private static int parallelSubjects = 2;
+
+    @Parameter(names = {"-t", "--threads"}, description = "Number of entities to import in parallel")
+    private static int threads = 1;
+
+    @Parameter(names = "--parallel-calls", description = "Number of calls per entity to make in parallel, e.g. filters and translations")
+    private static int parallelCalls = Importer.DEFAULT_PARALLEL_CALLS;
+
+    @Parameter(names = "--max-connections", description = "Maximum number of connections to the API in use at once")
+    private static int maxConnections = 20;
+
+    @Parameter(names = "--max-connections-per-route", description = "Maximum number of connections to the API host in use at once")
+    private static int maxConnectionsPerRoute = 10;
+
+    @Parameter(names = "--connect-timeout", description = "Connect timeout in milliseconds")
+    private static int connectTimeout = 5000;
+
+    @Parameter(names = "--read-timeout", description = "Read timeout in milliseconds")
+    private static int readTimeout = 60000;
+
+    @Parameter(names = "--gzip-requests", description = "Gzip request bodies, the API must accept gzipped requests")
+    private static boolean gzipRequests = false;
+
+    @Parameter(names = "--max-retries", description = "Number of times to retry a call that fails with a connection error or 429, 500, 502, 503 or 504")
+    private static int maxRetries = RetryInterceptor.DEFAULT_MAX_RETRIES;
+
+    @Parameter(names = "--retry-delay", description = "Longest wait in milliseconds before the first retry, doubled for each retry after it")
+    private static long retryDelay = RetryInterceptor.DEFAULT_BASE_DELAY_MILLIS;
+
+    @Parameter(names = "--requests-per-second", description = "Maximum number of calls to the API per second on average, 0 for no limit")
+    private static double requestsPerSecond = 0;
+
+    @Parameter(names = "--burst", description = "Number of calls that may be made at once when the API has not been called for a while, with --requests-per-second")
+    private static int burst = 10;
+
+    @Parameter(names = "--adaptive-concurrency", description = "Adapt the number of calls to the API in flight at once to its latency and errors, between 1 and --max-connections. Use with a high --threads")
+    private static boolean adaptiveConcurrency = false;
+
+    @Parameter(names = "--log-level", description = "Log level of a category, e.g. parser=debug, importer=warn or http=debug. Can be repeated")
+    private static List<String> logLevels = new ArrayList<>();
+
+    @Parameter(names = "--summary-interval", description = "Log a summary of the import every this many entities")
+    private static int summaryInterval = Importer.DEFAULT_SUMMARY_INTERVAL;
+
+    @Parameter(names = "--metrics-json", description = "Write call counts and latencies per API endpoint to this file as JSON")
+    private static String metricsJson;
+
+    @Parameter(names = "--journal", description = "Record each imported topic and resource in this file, so the import can be resumed. In batch mode each sheet has a journal next to it")
+    private static String journal;
+
+    @Parameter(names = "--resume", description = "Skip the rows the journal records as imported, and do not delete the subject again")
+    private static boolean resume = false;
+
+    @Parameter(names = "--force", description = "In batch mode, also import the sheets that have not changed since they were last imported to the environment")
+    private static boolean force = false;
+
+    @Parameter(names = "--dry-run", description = "Write the calls the import would make to this file as JSON lines instead of making them, and estimate the calls per endpoint. Only reads from the API")
+    private static String dryRun;
+
+    @Parameter(names = "--snapshot", description = "With --dry-run, read from this snapshot instead of the API")
+    private static String snapshot;
+
+    @Parameter(names = "--save-snapshot", description = "With --dry-run, save what was read from the API to this file, for --snapshot")
+    private static String saveSnapshot;
+
+    @Parameter(names = "--assumed-latency", description = "Latency in milliseconds per call to estimate the time of a dry run with, when the API is not called")
+    private static double assumedLatency = 50;
+
+    @Parameter(names = "--mirror-dir", description = "Keep the state of each subject in this directory after an import without failures, per environment, so the next import of the subject starts from it instead of reading it from the API")
+    private static String mirrorDir;
+
+    @Parameter(names = "--mirror-max-age", description = "Age in hours of the oldest mirror to start from, with --mirror-dir")
+    private static long mirrorMaxAge = 24;
+
+    @Parameter(names = "--hash-dir", description = "Keep hashes of the topic subtrees of each sheet in this directory after an import without failures, per environment, and skip the level 1 and level 2 topics whose subtree has not changed since")
+    private static String hashDir;
+
     @Parameter(names = "--help", help = true)
     private static boolean help;
 
@@ -63,33 +162,183 @@ public class ImporterApplication {
             return;
         }
 
+        if (subjectId == null && batch == null) {
+            StringBuilder stringBuilder = new StringBuilder("Either --subject-id or --batch is required\n\n");
+            jCommander.usage(stringBuilder);
+            System.err.println(stringBuilder.toString());
+            return;
+        }
+
+        if (dryRun != null && (batch != null || deleteSubject)) {
+            StringBuilder stringBuilder = new StringBuilder("--dry-run plans the import of a single subject, without --batch or --delete-subject\n\n");
+            jCommander.usage(stringBuilder);
+            System.err.println(stringBuilder.toString());
+            return;
+        }
+
+        if ((snapshot != null || saveSnapshot != null) && dryRun == null) {
+            StringBuilder stringBuilder = new StringBuilder("--snapshot and --save-snapshot require --dry-run\n\n");
+            jCommander.usage(stringBuilder);
+            System.err.println(stringBuilder.toString());
+            return;
+        }
+
+        if (resume && journal == null && batch == null) {
+            StringBuilder stringBuilder = new StringBuilder("--resume requires --journal when importing a single subject\n\n");
+            jCommander.usage(stringBuilder);
+            System.err.println(stringBuilder.toString());
+            return;
+        }
+
+        PooledHttpRequestFactory.setKeepAliveConnections(maxConnectionsPerRoute);
         ConfigurableApplicationContext context = SpringApplication.run(ImporterApplication.class, args);
+        setLogLevels();
         Importer importer = context.getBean(Importer.class);
-        app.run(importer);
+        PooledHttpRequestFactory requestFactory = context.getBean(PooledHttpRequestFactory.class);
+        TaxonomyRestClient restClient = context.getBean(TaxonomyRestClient.class);
+        if (dryRun != null) {
+            app.runDryRun(importer, restClient);
+        } else if (batch != null) {
+            requestFactory.warmUp(endpoint, parallelSubjects * threads, restClient.getAuthorizationHeaders());
+            int failed = app.runBatch(restClient);
+            reportMetrics(requestFactory, restClient.getRetries(), restClient.getMetrics());
+            if (failed > 0) System.exit(1);
+        } else {
+            requestFactory.warmUp(endpoint, threads, restClient.getAuthorizationHeaders());
+            app.run(importer);
+            reportMetrics(requestFactory, restClient.getRetries(), restClient.getMetrics());
+        }
+    }
+
+    private static void reportMetrics(PooledHttpRequestFactory requestFactory, RetryInterceptor retries, CallMetrics metrics) throws IOException {
+        AdaptiveConcurrencyLimiter limiter = retries.getConcurrencyLimiter();
+        if (limiter != null) {
+            log.info("{}\n{}\n{}\n{}", requestFactory.getStatistics(), retries.getStatistics(), limiter.getStatistics(), metrics.getTable());
+        } else {
+            log.info("{}\n{}\n{}", requestFactory.getStatistics(), retries.getStatistics(), metrics.getTable());
+        }
+        if (metricsJson != null) {
+            metrics.writeJson(new File(metricsJson));
+        }
     }
 
     private void run(Importer importer) throws Exception {
-        TsvParser.StringIterator iterator = new InputStreamStringIterator(System.in);
+        Entity entity;
+        if (journal != null) {
+            try (ImportJournal importJournal = ImportJournal.open(Paths.get(journal), resume)) {
+                importer.setJournal(importJournal);
+                entity = importSubject(importer, new FileInputStream(FileDescriptor.in).getChannel(), URI.create(subjectId), subjectName, deleteSubject, threads);
+            }
+        } else {
+            entity = importSubject(importer, new FileInputStream(FileDescriptor.in).getChannel(), URI.create(subjectId), subjectName, deleteSubject, threads);
+        }
+        generateUrlCacheRebuild(entity, importer);
+        log.info(importer.getSummary());
+    }
+
+    private void runDryRun(Importer importer, TaxonomyRestClient restClient) throws Exception {
+        restClient.setReadOnly(true);
+        ResponseSnapshot responses = snapshot != null ? ResponseSnapshot.replay(new File(snapshot)) : saveSnapshot != null ? ResponseSnapshot.record() : null;
+        restClient.setSnapshot(responses);
+
+        long start = System.nanoTime();
+        try (Writer writer = Files.newBufferedWriter(Paths.get(dryRun), StandardCharsets.UTF_8)) {
+            DryRun plan = new DryRun(writer);
+            importer.setDryRun(plan);
+            Entity entity = importSubject(importer, new FileInputStream(FileDescriptor.in).getChannel(), URI.create(subjectId), subjectName, false, 1);
+            generateUrlCacheRebuild(entity, importer);
+            plan.flush();
+
+            double latency = snapshot != null ? assumedLatency : getMeanLatency(restClient.getMetrics());
+            log.info("Planned {} writes to {} in {} ms\n{}", plan.getPlannedWrites(), dryRun, (System.nanoTime() - start) / 1_000_000,
+                    plan.getEstimate(restClient.getMetrics(), latency, threads));
+        }
+        if (saveSnapshot != null) {
+            responses.write(new File(saveSnapshot));
+            log.info("Saved {} answers from the API to {}", responses.size(), saveSnapshot);
+        }
+    }
+
+    private static double getMeanLatency(CallMetrics metrics) {
+        long calls = 0;
+        long millis = 0;
+        for (CallMetrics.EndpointStatistics statistics : metrics.getStatistics()) {
+            calls += statistics.calls;
+            millis += statistics.totalMillis;
+        }
+        return calls > 0 ? (double) millis / calls : assumedLatency;
+    }
+
+    private static void setLogLevels() {
+        LoggingSystem loggingSystem = LoggingSystem.get(ImporterApplication.class.getClassLoader());
+        for (String logLevel : logLevels) {
+            String[] parts = logLevel.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Log level must be given as category=level, was " + logLevel);
+            }
+            loggingSystem.setLogLevel(parts[0].trim(), LogLevel.valueOf(parts[1].trim().toUpperCase()));
+        }
+    }
+
+    private int runBatch(TaxonomyRestClient restClient) throws Exception {
+        List<BatchImport.Job> jobs = BatchImport.readJobs(Paths.get(batch));
+        log.info("Importing {} subjects, {} at a time", jobs.size(), parallelSubjects);
+
+        MetadataRegistry metadata = new MetadataRegistry(restClient);
+        ConnectionRegistry connections = new ConnectionRegistry(restClient);
+        BatchImport batchImport = new BatchImport(() -> newImporter(restClient, metadata, connections), threads, deleteSubject, resume);
+        Path importedSheets = ImportedSheets.getFile(Paths.get(batch), restClient.getUrlBase());
+        batchImport.setImportedSheets(ImportedSheets.read(importedSheets), force);
+        int failed = batchImport.run(jobs, parallelSubjects);
+        batchImport.rebuildUrlCache();
+        log.info("Imported {} of {} subjects, skipped {} unchanged, see {}", jobs.size() - failed - batchImport.getSkipped(), jobs.size(),
+                batchImport.getSkipped(), importedSheets);
+        return failed;
+    }
+
+    /**
+     * Imports one subject from a sheet.
+     *
+     * @return the last entity imported, or null if the sheet is empty
+     */
+    static Entity importSubject(Importer importer, ReadableByteChannel sheet, URI subjectId, String subjectName, boolean deleteSubject, int threads) throws Exception {
 
         Entity subject = new Entity.Builder()
-                .id(URI.create(subjectId))
+                .id(subjectId)
                 .name(subjectName)
                 .type("Subject")
                 .build();
-        if (deleteSubject) {
-            importer.deleteList(importer.listResourcesAndTopicsForSubjects(subject.getId()));
+        if (deleteSubject && importer.isResuming()) {
+            log.info("Resuming import of {}, not deleting it again", subjectId);
+        } else if (deleteSubject) {
+            importer.deleteTopicsAndResources(subject.getId());
+            importer.discardMirror(subject.getId());
+            importer.discardSubtreeHashes(subject.getId());
         }
+        importer.restoreMirror(subject.getId());
         importer.doImport(subject);
 
-        Iterator<Entity> entities = new TsvParser(iterator, subject);
-        Entity entity = null;
-
+        Iterator<Entity> entities = new TsvParser(new TsvTokenizer(sheet), subject);
+        List<Entity> parsed = new ArrayList<>();
         while (entities.hasNext()) {
-            entity = entities.next();
-            importer.doImport(entity);
+            Entity next = entities.next();
+            if (next != null) parsed.add(next);
         }
-
-        generateUrlCacheRebuild(entity, importer);
+        List<Entity> remaining = importer.skipCompleted(parsed);
+        remaining = importer.skipUnchanged(subjectId, parsed, remaining);
+        importer.classify(remaining);
+        importer.provision(remaining);
+
+        if (threads > 1) {
+            new ConcurrentImporter(importer, threads).importAll(remaining);
+        } else {
+            for (Entity entity : remaining) {
+                importer.doImport(entity);
+            }
+        }
+        importer.saveMirror(subject.getId());
+        importer.saveSubtreeHashes(subject.getId());
+        return parsed.isEmpty() ? null : parsed.get(parsed.size() - 1);
     }
 
     private void generateUrlCacheRebuild(Entity entity, Importer importer) {
@@ -97,52 +346,42 @@ public class ImporterApplication {
     }
 
     @Bean
-    public RestTemplate restTemplate() {
-        return new RestTemplate();
+    public PooledHttpRequestFactory requestFactory() {
+        return new PooledHttpRequestFactory(maxConnections, maxConnectionsPerRoute, connectTimeout, readTimeout, gzipRequests);
+    }
+
+    @Bean
+    public RestTemplate restTemplate(PooledHttpRequestFactory requestFactory) {
+        return new RestTemplate(requestFactory);
     }
 
     @Bean
     public TaxonomyRestClient restClient(RestTemplate restTemplate) {
-        return new TaxonomyRestClient(endpoint, clientId, clientSecret, tokenServer, restTemplate);
+        TaxonomyRestClient restClient = new TaxonomyRestClient(endpoint, clientId, clientSecret, tokenServer, restTemplate);
+        restClient.getRetries().setBackoff(maxRetries, retryDelay, RetryInterceptor.DEFAULT_MAX_DELAY_MILLIS);
+        if (requestsPerSecond > 0) {
+            restClient.getRetries().setRateLimiter(new RateLimiter(requestsPerSecond, burst));
+        }
+        if (adaptiveConcurrency) {
+            restClient.getRetries().setConcurrencyLimiter(new AdaptiveConcurrencyLimiter(Math.min(threads, maxConnections), 1, maxConnections));
+        }
+        return restClient;
     }
 
     @Bean
     public Importer importer(TaxonomyRestClient restClient) {
-        return new Importer(restClient);
+        return newImporter(restClient, new MetadataRegistry(restClient), new ConnectionRegistry(restClient));
     }
 
-    private static class InputStreamStringIterator extends TsvParser.StringIterator {
-        public static final int HEADER_LINES_IN_SPREADSHEET = 2;
-        private final BufferedReader reader;
-
-        private int lineNumber = -1;
-
-        public InputStreamStringIterator(InputStream inputStream) throws Exception {
-            reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+    private static Importer newImporter(TaxonomyRestClient restClient, MetadataRegistry metadata, ConnectionRegistry connections) {
+        Importer importer = new Importer(restClient, parallelCalls, metadata, connections);
+        importer.setSummaryInterval(summaryInterval);
+        if (mirrorDir != null) {
+            importer.setMirror(Paths.get(mirrorDir), TimeUnit.HOURS.toMillis(mirrorMaxAge), TaxonomyMirror.DEFAULT_SPOT_CHECKS);
         }
-
-        @Override
-        public boolean hasNext() {
-            try {
-                return reader.ready();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-        @Override
-        public String next() {
-            try {
-                lineNumber++;
-                return reader.readLine();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-        @Override
-        public int getLineNumber() {
-            return lineNumber + HEADER_LINES_IN_SPREADSHEET;
+        if (hashDir != null) {
+            importer.setSubtreeHashes(Paths.get(hashDir));
         }
+        return importer;
     }
 }
@@ -0,0 +1,29 @@
+package no.ndla.taxonomy;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.filter.Filter;
+import ch.qos.logback.core.spi.FilterReply;
+
+/**
+ * Lets an appender take only the events that have, or only those that lack, a given MDC key.
+ * <p>
+ * Used in <code>logback.xml</code> to send the log of a subject in batch mode to its own file instead of the console.
+ */
+public class MdcFilter extends Filter<ILoggingEvent> {
+    private String key;
+    private boolean present = true;
+
+    @Override
+    public FilterReply decide(ILoggingEvent event) {
+        boolean hasKey = event.getMDCPropertyMap().containsKey(key);
+        return hasKey == present ? FilterReply.NEUTRAL : FilterReply.DENY;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public void setPresent(boolean present) {
+        this.present = present;
+    }
+}
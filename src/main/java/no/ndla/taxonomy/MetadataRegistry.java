@@ -0,0 +1,240 @@
+package no.ndla.taxonomy;
+
+import no.ndla.taxonomy.client.AsyncTaxonomyRestClient;
+import no.ndla.taxonomy.client.TaxonomyRestClient;
+import no.ndla.taxonomy.client.relevances.RelevanceIndexDocument;
+import no.ndla.taxonomy.client.resourceTypes.ResourceTypeIndexDocument;
+import no.ndla.taxonomy.client.subjects.FilterIndexDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static no.ndla.taxonomy.Importer.KJERNESTOFF;
+import static no.ndla.taxonomy.Importer.TILLEGGSSSTOFF;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * The resource types, relevances and filters of the taxonomy API, keyed by name, created on first use.
+ * <p>
+ * Resource types and relevances are shared by all subjects and loaded once. Filters belong to a subject,
+ * so they are loaded once per subject and keyed by subject and name. Lookups are safe from any thread,
+ * and each missing value is created exactly once: the first caller creates it while concurrent callers
+ * asking for the same name wait for the result. A failed create is not remembered, so the next caller tries again.
+ * Importers for different subjects should share a registry, so each resource type and relevance is read only once.
+ */
+public class MetadataRegistry {
+    private static final Logger log = LoggerFactory.getLogger("importer");
+
+    private final TaxonomyRestClient restClient;
+    private volatile Map<String, CompletableFuture<URI>> resourceTypes;
+    private volatile Map<String, CompletableFuture<URI>> relevances;
+    private final Map<URI, Map<String, CompletableFuture<URI>>> filtersBySubject = new ConcurrentHashMap<>();
+    private volatile DryRun dryRun;
+
+    public MetadataRegistry(TaxonomyRestClient restClient) {
+        this.restClient = restClient;
+    }
+
+    /**
+     * @param dryRun plans the resource types, relevances and filters that are missing instead of creating them, or null to create them
+     */
+    public void setDryRun(DryRun dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Creates the resource types, relevances and filters the entities refer to that do not exist yet, concurrently,
+     * so importing the entities only links them. Parent resource types are created before their subtypes, and the
+     * filters of all subjects are read at once.
+     * Whatever fails to be created here is tried again when an entity needs it.
+     */
+    public void provision(List<Entity> entities, AsyncTaxonomyRestClient asyncClient) {
+        Map<String, ResourceType> parentTypes = new LinkedHashMap<>();
+        Map<String, ResourceType> subtypes = new LinkedHashMap<>();
+        Map<String, Relevance> relevances = new LinkedHashMap<>();
+        Map<URI, Map<String, Filter>> filters = new LinkedHashMap<>();
+        for (Entity entity : entities) {
+            for (ResourceType resourceType : entity.resourceTypes) {
+                if (resourceType == null) continue;
+                (isNotBlank(resourceType.parentName) ? subtypes : parentTypes).putIfAbsent(resourceType.name, resourceType);
+            }
+            URI subjectId = ImportPlanner.getSubjectId(entity);
+            for (Filter filter : entity.filters) {
+                if (filter.relevance != null && isNotBlank(filter.relevance.name)) {
+                    relevances.putIfAbsent(filter.relevance.name, filter.relevance);
+                }
+                if (subjectId != null) {
+                    filters.computeIfAbsent(subjectId, id -> new LinkedHashMap<>()).putIfAbsent(filter.name, filter);
+                }
+            }
+        }
+
+        List<CompletableFuture<URI>> created = new ArrayList<>();
+        List<CompletableFuture<URI>> parents = new ArrayList<>();
+        for (ResourceType resourceType : parentTypes.values()) {
+            if (!getResourceTypes().containsKey(resourceType.name)) {
+                parents.add(asyncClient.submit(() -> getResourceTypeId(resourceType)));
+            }
+        }
+        for (Relevance relevance : relevances.values()) {
+            if (!getRelevances().containsKey(relevance.name)) {
+                created.add(asyncClient.submit(() -> getRelevanceId(relevance)));
+            }
+        }
+        Map<URI, CompletableFuture<FilterIndexDocument[]>> loads = new HashMap<>();
+        for (URI subjectId : filters.keySet()) {
+            if (!filtersBySubject.containsKey(subjectId)) {
+                loads.put(subjectId, asyncClient.getFiltersForSubject(subjectId));
+            }
+        }
+        filters.forEach((subjectId, subjectFilters) -> {
+            Map<String, CompletableFuture<URI>> existing = filtersBySubject.computeIfAbsent(subjectId,
+                    id -> loadFilters(() -> AsyncTaxonomyRestClient.join(loads.get(id))));
+            for (Filter filter : subjectFilters.values()) {
+                if (!existing.containsKey(filter.name)) {
+                    created.add(asyncClient.submit(() -> getFilterId(filter, subjectId)));
+                }
+            }
+        });
+
+        int failed = await(parents);
+        for (ResourceType resourceType : subtypes.values()) {
+            if (!getResourceTypes().containsKey(resourceType.name)) {
+                created.add(asyncClient.submit(() -> getResourceTypeId(resourceType)));
+            }
+        }
+        failed += await(created);
+        log.info("Created {} resource types, relevances and filters before the import, {} failed", parents.size() + created.size() - failed, failed);
+    }
+
+    private int await(List<CompletableFuture<URI>> futures) {
+        int failed = 0;
+        for (CompletableFuture<URI> future : futures) {
+            try {
+                AsyncTaxonomyRestClient.join(future);
+            } catch (RuntimeException e) {
+                failed++;
+                log.warn("Could not create metadata before the import: {}", e.getMessage());
+            }
+        }
+        return failed;
+    }
+
+    public URI getResourceTypeId(ResourceType resourceType) {
+        Map<String, CompletableFuture<URI>> resourceTypes = getResourceTypes();
+        return getOrCreate(resourceTypes, resourceType.name, () -> {
+            if (isNotBlank(resourceType.parentName)) {
+                CompletableFuture<URI> parent = resourceTypes.get(resourceType.parentName);
+                resourceType.parentId = parent != null ? AsyncTaxonomyRestClient.join(parent) : null;
+            }
+            log.info("Creating resource type {} with id: {}", resourceType.name, resourceType.id);
+            resourceType.id = create(Operation.create("resource-types", resourceType.id,
+                    () -> restClient.createResourceType(resourceType.id, resourceType.name, resourceType.parentId))
+                    .with("name", resourceType.name).with("parent", resourceType.parentId));
+            return resourceType.id;
+        });
+    }
+
+    public URI getRelevanceId(Relevance relevance) {
+        return getOrCreate(getRelevances(), relevance.name, () -> {
+            if (relevance.name.equals(KJERNESTOFF)) {
+                relevance.id = URI.create("urn:relevance:core");
+            } else if (relevance.name.equals(TILLEGGSSSTOFF)) {
+                relevance.id = URI.create("urn:relevance:supplementary");
+            }
+            relevance.id = create(Operation.create("relevances", relevance.id, () -> restClient.createRelevance(relevance.id, relevance.name))
+                    .with("name", relevance.name));
+            return relevance.id;
+        });
+    }
+
+    public URI getFilterId(Filter filter, URI subjectId) {
+        Map<String, CompletableFuture<URI>> filters = filtersBySubject.computeIfAbsent(subjectId, this::loadFilters);
+        return getOrCreate(filters, filter.name, () -> {
+            filter.id = create(Operation.create("filters", filter.id, () -> restClient.createFilter(filter.id, filter.name, subjectId))
+                    .with("name", filter.name).with("subject", subjectId));
+            return filter.id;
+        });
+    }
+
+    private URI create(Operation operation) {
+        DryRun plan = dryRun;
+        return ImportPlanner.getId(plan != null ? plan.run(null, operation) : operation.execute());
+    }
+
+    private URI getOrCreate(Map<String, CompletableFuture<URI>> values, String name, Supplier<URI> create) {
+        CompletableFuture<URI> value = values.get(name);
+        if (value == null) {
+            CompletableFuture<URI> created = new CompletableFuture<>();
+            value = values.putIfAbsent(name, created);
+            if (value == null) {
+                try {
+                    created.complete(create.get());
+                } catch (RuntimeException e) {
+                    values.remove(name, created);
+                    created.completeExceptionally(e);
+                    throw e;
+                }
+                value = created;
+            }
+        }
+        return AsyncTaxonomyRestClient.join(value);
+    }
+
+    private Map<String, CompletableFuture<URI>> getResourceTypes() {
+        if (resourceTypes == null) {
+            synchronized (this) {
+                if (resourceTypes == null) {
+                    Map<String, CompletableFuture<URI>> loaded = new ConcurrentHashMap<>();
+                    for (ResourceTypeIndexDocument resourceType : restClient.getResourceTypes()) {
+                        loaded.put(resourceType.name, CompletableFuture.completedFuture(resourceType.id));
+                        for (ResourceTypeIndexDocument subtype : resourceType.subtypes) {
+                            loaded.put(subtype.name, CompletableFuture.completedFuture(subtype.id));
+                        }
+                    }
+                    resourceTypes = loaded;
+                }
+            }
+        }
+        return resourceTypes;
+    }
+
+    private Map<String, CompletableFuture<URI>> getRelevances() {
+        if (relevances == null) {
+            synchronized (this) {
+                if (relevances == null) {
+                    Map<String, CompletableFuture<URI>> loaded = new ConcurrentHashMap<>();
+                    for (RelevanceIndexDocument relevance : restClient.getRelevances()) {
+                        loaded.put(relevance.name, CompletableFuture.completedFuture(relevance.id));
+                    }
+                    relevances = loaded;
+                }
+            }
+        }
+        return relevances;
+    }
+
+    private Map<String, CompletableFuture<URI>> loadFilters(URI subjectId) {
+        return loadFilters(() -> restClient.getFiltersForSubject(subjectId));
+    }
+
+    private Map<String, CompletableFuture<URI>> loadFilters(Supplier<FilterIndexDocument[]> load) {
+        Map<String, CompletableFuture<URI>> filters = new ConcurrentHashMap<>();
+        try {
+            for (FilterIndexDocument filter : load.get()) {
+                filters.put(filter.name, CompletableFuture.completedFuture(filter.id));
+            }
+        } catch (HttpClientErrorException e) {
+            // a subject that is only planned in a dry run has no filters yet
+            if (e.getStatusCode() != HttpStatus.NOT_FOUND) throw e;
+        }
+        return filters;
+    }
+}
@@ -0,0 +1,91 @@
+package no.ndla.taxonomy;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A single write against the taxonomy API, as planned by {@link ImportPlanner}.
+ * <p>
+ * The call is not made until the operation is executed. After a successful call the
+ * write-through callback keeps the importer's view of the remote state up to date.
+ */
+public class Operation {
+    public enum Action {CREATE, UPDATE, DELETE}
+
+    public final Action action;
+    public final String target;
+    public final URI id;
+    private final Supplier<URI> call;
+    private final Map<String, Object> attributes = new LinkedHashMap<>();
+    private Consumer<URI> onSuccess = location -> {
+    };
+    private boolean required;
+
+    private Operation(Action action, String target, URI id, Supplier<URI> call) {
+        this.action = action;
+        this.target = target;
+        this.id = id;
+        this.call = call;
+    }
+
+    public static Operation create(String target, URI id, Supplier<URI> call) {
+        return new Operation(Action.CREATE, target, id, call);
+    }
+
+    public static Operation update(String target, URI id, Supplier<URI> call) {
+        return new Operation(Action.UPDATE, target, id, call);
+    }
+
+    public static Operation delete(String target, URI id, Supplier<URI> call) {
+        return new Operation(Action.DELETE, target, id, call);
+    }
+
+    public Operation with(String name, Object value) {
+        attributes.put(name, value);
+        return this;
+    }
+
+    public Operation onSuccess(Consumer<URI> onSuccess) {
+        this.onSuccess = onSuccess;
+        return this;
+    }
+
+    /**
+     * Marks the operation as one the rest of the entity depends on, so a failure aborts the entity.
+     */
+    public Operation required() {
+        this.required = true;
+        return this;
+    }
+
+    public boolean isRequired() {
+        return required;
+    }
+
+    public Map<String, Object> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    public URI execute() {
+        URI location = call.get();
+        onSuccess.accept(location);
+        return location;
+    }
+
+    /**
+     * Completes the operation as if the call had been made and the API had answered with the given location.
+     */
+    public URI simulate(URI location) {
+        onSuccess.accept(location);
+        return location;
+    }
+
+    @Override
+    public String toString() {
+        return action + " " + target + " " + id + (attributes.isEmpty() ? "" : " " + attributes);
+    }
+}
@@ -0,0 +1,144 @@
+package no.ndla.taxonomy;
+
+import no.ndla.taxonomy.client.AsyncTaxonomyRestClient;
+import no.ndla.taxonomy.client.TaxonomyRestClient;
+import no.ndla.taxonomy.client.subjects.TopicIndexDocument;
+import no.ndla.taxonomy.client.topics.ResourceIndexDocument;
+import no.ndla.taxonomy.client.topics.SubtopicIndexDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static no.ndla.taxonomy.Importer.*;
+
+/**
+ * Deletes the topics of a subject and the topics and resources below them, as far as they belong to it, i.e. are
+ * connected to their parent as primary, before the subject is imported again.
+ * <p>
+ * The subtopics and resources of a topic are read side by side, and the subtrees of sibling topics are walked
+ * concurrently, so the tree is read in about as many round trips as it is deep. A topic is deleted as soon as its
+ * subtopics and resources are known, since deleting it removes the connections to them, and each resource as soon
+ * as it is found, so deleting starts while the rest of the tree is still being read. Reads and deletes each run
+ * on a bounded pool of threads; when the delete pool is full, the reads wait for it.
+ */
+public class SubjectTeardown {
+    private static final Logger log = LoggerFactory.getLogger("importer");
+
+    private final TaxonomyRestClient restClient;
+    private final AsyncTaxonomyRestClient reads;
+    private final AsyncTaxonomyRestClient deletes;
+    private final Set<URI> visited = ConcurrentHashMap.newKeySet();
+    private final Set<URI> deletedTopics = ConcurrentHashMap.newKeySet();
+    private final Queue<CompletableFuture<Void>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger topicCount = new AtomicInteger();
+    private final AtomicInteger resourceCount = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * @param reads the client to read the tree with
+     * @param parallelDeletes the number of deletes to make at once
+     */
+    public SubjectTeardown(AsyncTaxonomyRestClient reads, int parallelDeletes) {
+        this.restClient = reads.getRestClient();
+        this.reads = reads;
+        this.deletes = new AsyncTaxonomyRestClient(restClient, parallelDeletes);
+    }
+
+    /**
+     * Deletes what can be deleted, even if part of the tree cannot be read or deleted.
+     *
+     * @return the number of topics and resources deleted
+     * @throws IllegalStateException if part of the tree could not be read or deleted
+     */
+    public int delete(URI subjectId) {
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> traversals = new ArrayList<>();
+        List<URI> roots = new ArrayList<>();
+        for (TopicIndexDocument topic : restClient.getTopicsForSubject(subjectId, false)) {
+            if (!visited.add(topic.id)) continue;
+            traversals.add(visit(newEntity(TOPIC_TYPE, topic.id, topic.name)));
+            roots.add(topic.id);
+        }
+
+        int unread = 0;
+        for (int i = 0; i < traversals.size(); i++) {
+            try {
+                AsyncTaxonomyRestClient.join(traversals.get(i));
+            } catch (RuntimeException e) {
+                unread++;
+                log.error("Could not read all of the subtree of {}", roots.get(i), e);
+            }
+        }
+        // every delete has been queued once the whole tree has been read
+        for (CompletableFuture<Void> delete : pending) {
+            delete.join();
+        }
+
+        int deleted = topicCount.get() + resourceCount.get() - failed.get();
+        if (unread > 0 || failed.get() > 0) {
+            throw new IllegalStateException("Deleted " + deleted + " topics and resources of " + subjectId + ", but " + failed.get()
+                    + " could not be deleted and " + unread + " subtrees could not be read, see the log for details");
+        }
+        log.info("Deleted {} topics and {} resources of {} in {} ms", topicCount.get(), resourceCount.get(), subjectId, (System.nanoTime() - start) / 1_000_000);
+        return deleted;
+    }
+
+    /**
+     * @return the topics deleted so far
+     */
+    public Set<URI> getDeletedTopics() {
+        return Collections.unmodifiableSet(deletedTopics);
+    }
+
+    private CompletableFuture<Void> visit(Entity topic) {
+        CompletableFuture<SubtopicIndexDocument[]> subtopics = reads.submit(() -> restClient.getSubtopicsForTopic(topic.getId()));
+        CompletableFuture<ResourceIndexDocument[]> resources = reads.submit(() -> restClient.getResourcesForTopic(topic.getId()));
+        return subtopics.thenCombine(resources, (subtopicDocuments, resourceDocuments) -> {
+            delete(topic);
+            topicCount.incrementAndGet();
+            for (ResourceIndexDocument resource : resourceDocuments) {
+                if (!Boolean.TRUE.equals(resource.isPrimary) || !visited.add(resource.id)) continue;
+                delete(newEntity(RESOURCE_TYPE, resource.id, resource.name));
+                resourceCount.incrementAndGet();
+            }
+
+            List<CompletableFuture<Void>> children = new ArrayList<>();
+            for (SubtopicIndexDocument subtopic : subtopicDocuments) {
+                if (!Boolean.TRUE.equals(subtopic.isPrimary) || !visited.add(subtopic.id)) continue;
+                children.add(visit(newEntity(TOPIC_TYPE, subtopic.id, subtopic.name)));
+            }
+            return CompletableFuture.allOf(children.toArray(new CompletableFuture[0]));
+        }).thenCompose(Function.identity());
+    }
+
+    private void delete(Entity entity) {
+        pending.add(deletes.run(() -> {
+            log.debug("Deleting {}", entity);
+            restClient.removeEntity(entity);
+            if (TOPIC_TYPE.equals(entity.type)) deletedTopics.add(entity.getId());
+        }).exceptionally(e -> {
+            failed.incrementAndGet();
+            log.warn("Could not delete {}: {}", entity.getId(), e.getMessage());
+            return null;
+        }));
+    }
+
+    private static Entity newEntity(String type, URI id, String name) {
+        return new Entity.Builder()
+                .type(type)
+                .id(id)
+                .name(name)
+                .build();
+    }
+}
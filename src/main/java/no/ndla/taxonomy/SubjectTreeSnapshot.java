@@ -0,0 +1,155 @@
+package no.ndla.taxonomy;
+
+import no.ndla.taxonomy.client.TaxonomyRestClient;
+import no.ndla.taxonomy.client.subjects.TopicIndexDocument;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-memory index of the topics of one subject and the connections between them, keyed by topic URN.
+ * <p>
+ * Loaded once per subject and kept up to date by the importer as it creates and updates connections,
+ * so that looking up a connection never requires another round trip to the taxonomy API.
+ * Unlike the recursive topic listing, the snapshot holds every parent of a topic, not just the primary one.
+ * The connections come from a {@link ConnectionRegistry}, which gets the ones the snapshot creates.
+ */
+public class SubjectTreeSnapshot {
+    private final URI subjectId;
+    private final ConnectionRegistry registry;
+    private final Map<URI, TopicIndexDocument> topics = new ConcurrentHashMap<>();
+    private final Map<URI, Connection> subjectTopics = new ConcurrentHashMap<>();
+    private final Map<URI, List<Connection>> parents = new ConcurrentHashMap<>();
+
+    private SubjectTreeSnapshot(URI subjectId, ConnectionRegistry registry) {
+        this.subjectId = subjectId;
+        this.registry = registry;
+    }
+
+    public static SubjectTreeSnapshot empty() {
+        return new SubjectTreeSnapshot(null, null);
+    }
+
+    public static SubjectTreeSnapshot empty(URI subjectId, ConnectionRegistry registry) {
+        return new SubjectTreeSnapshot(subjectId, registry);
+    }
+
+    public static SubjectTreeSnapshot load(TaxonomyRestClient restClient, ConnectionRegistry registry, URI subjectId) {
+        SubjectTreeSnapshot snapshot = new SubjectTreeSnapshot(subjectId, registry);
+
+        for (TopicIndexDocument topic : restClient.getTopicsForSubject(subjectId)) {
+            snapshot.topics.put(topic.id, topic);
+        }
+
+        for (Connection subjectTopic : registry.getSubjectTopics(subjectId)) {
+            snapshot.subjectTopics.put(subjectTopic.childId, subjectTopic);
+        }
+
+        Set<Connection> topicSubtopics = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (URI topicId : snapshot.topics.keySet()) {
+            topicSubtopics.addAll(registry.getTopicSubtopics(topicId));
+        }
+        topicSubtopics.forEach(snapshot::addParent);
+        return snapshot;
+    }
+
+    /**
+     * Restores the snapshot saved in a mirror, with the names and content URIs of the topics as far as the mirror knows them.
+     */
+    public static SubjectTreeSnapshot restore(TaxonomyMirror mirror, ConnectionRegistry registry) {
+        SubjectTreeSnapshot snapshot = new SubjectTreeSnapshot(mirror.subjectId, registry);
+        for (URI topicId : mirror.topics) {
+            TaxonomyMirror.MirroredEntity topic = mirror.getEntity(topicId);
+            snapshot.putTopic(topicId, topic != null ? topic.name : null, topic != null ? topic.contentUri : null);
+        }
+        for (Connection subjectTopic : mirror.subjectTopics) {
+            snapshot.subjectTopics.put(subjectTopic.childId, subjectTopic);
+        }
+        for (Connection topicSubtopic : mirror.topicSubtopics) {
+            snapshot.addParent(topicSubtopic);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Saves the topics and connections of the snapshot to a mirror.
+     */
+    public void saveTo(TaxonomyMirror mirror) {
+        for (TopicIndexDocument topic : topics.values()) {
+            mirror.topics.add(topic.id);
+            if (mirror.getEntity(topic.id) == null) mirror.putEntity(topic.id, Importer.TOPIC_TYPE, topic.name, topic.contentUri);
+        }
+        mirror.subjectTopics.addAll(subjectTopics.values());
+        for (List<Connection> connections : parents.values()) {
+            mirror.topicSubtopics.addAll(connections);
+        }
+    }
+
+    public boolean isFor(URI subjectId) {
+        return Objects.equals(this.subjectId, subjectId);
+    }
+
+    public boolean containsTopic(URI topicId) {
+        return topics.containsKey(topicId);
+    }
+
+    public void putTopic(URI topicId, String name, URI contentUri) {
+        TopicIndexDocument topic = topics.computeIfAbsent(topicId, id -> new TopicIndexDocument());
+        topic.id = topicId;
+        topic.name = name;
+        topic.contentUri = contentUri;
+    }
+
+    public Connection getSubjectTopic(URI topicId) {
+        return subjectTopics.get(topicId);
+    }
+
+    public void putSubjectTopic(Connection connection) {
+        subjectTopics.put(connection.childId, connection);
+        if (registry != null) registry.putSubjectTopic(connection);
+    }
+
+    public List<Connection> getParents(URI topicId) {
+        return Collections.unmodifiableList(parents.getOrDefault(topicId, Collections.emptyList()));
+    }
+
+    public Connection getTopicSubtopic(URI parentId, URI subtopicId) {
+        for (Connection connection : parents.getOrDefault(subtopicId, Collections.emptyList())) {
+            if (connection.parentId.equals(parentId)) return connection;
+        }
+        return null;
+    }
+
+    public void putTopicSubtopic(Connection connection) {
+        Connection existing = getTopicSubtopic(connection.parentId, connection.childId);
+        if (existing != null) {
+            existing.id = connection.id;
+            existing.rank = connection.rank;
+        } else {
+            addParent(connection);
+            if (registry != null) registry.putTopicSubtopic(connection);
+            existing = connection;
+        }
+        setPrimary(existing, connection.primary);
+    }
+
+    public void updateTopicSubtopic(Connection connection, int rank, boolean primary) {
+        connection.rank = rank;
+        setPrimary(connection, primary);
+    }
+
+    private void setPrimary(Connection connection, boolean primary) {
+        connection.primary = primary;
+        if (!primary) return;
+        // A topic can only have one primary parent, the API demotes the others
+        for (Connection other : parents.getOrDefault(connection.childId, Collections.emptyList())) {
+            if (other != connection) other.primary = false;
+        }
+    }
+
+    private void addParent(Connection connection) {
+        parents.computeIfAbsent(connection.childId, id -> new CopyOnWriteArrayList<>()).add(connection);
+    }
+}
@@ -0,0 +1,152 @@
+package no.ndla.taxonomy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static no.ndla.taxonomy.Importer.*;
+
+/**
+ * Hashes of the subtrees of the level 1 and level 2 topics of a sheet, as parsed, so a sheet that is imported again
+ * with few changes only imports the subtrees that changed.
+ * <p>
+ * The hash of a topic or resource covers its row, i.e. its URN, node ID, name, content URI, rank, primary flag,
+ * old URL, resource types, filters and translations, and the hashes of the subtopics and resources below it in
+ * sheet order, so a change anywhere below a topic changes its hash. The hashes of an import without failures are
+ * kept per environment and subject, as lines of parent URN, topic URN and hash separated by tabs, and the next import
+ * of the subject leaves out the subtrees whose hash is the same. A topic that occurs several times under the same
+ * parent gets one hash for all of its occurrences.
+ */
+public class SubtreeHashes {
+    private static final Logger log = LoggerFactory.getLogger("importer");
+
+    private final Map<String, String> hashes = new TreeMap<>();
+    private final Map<Entity, String> keys = new IdentityHashMap<>();
+
+    private SubtreeHashes() {
+    }
+
+    public static SubtreeHashes empty() {
+        return new SubtreeHashes();
+    }
+
+    /**
+     * Gives topics and resources without a URN the one derived from their node ID first.
+     *
+     * @param entities the entities of a sheet in sheet order, parents before their children
+     */
+    public static SubtreeHashes compute(List<Entity> entities) {
+        Map<Entity, List<Entity>> children = new IdentityHashMap<>();
+        for (Entity entity : entities) {
+            ImportPlanner.assignId(entity);
+            if (entity.parent != null) children.computeIfAbsent(entity.parent, parent -> new ArrayList<>()).add(entity);
+        }
+
+        SubtreeHashes result = new SubtreeHashes();
+        Map<Entity, String> subtrees = new IdentityHashMap<>();
+        // children come after their parents, so they are hashed first
+        for (int i = entities.size() - 1; i >= 0; i--) {
+            Entity entity = entities.get(i);
+            StringBuilder subtree = new StringBuilder(getRow(entity));
+            for (Entity child : children.getOrDefault(entity, Collections.emptyList())) {
+                subtree.append('\n').append(subtrees.get(child));
+            }
+            String hash = ImportJournal.sha1(subtree.toString());
+            subtrees.put(entity, hash);
+
+            if (isLevelOne(entity) || isLevelTwo(entity)) {
+                String key = entity.parent.getId() + "\t" + entity.getId();
+                result.keys.put(entity, key);
+                // later occurrences are hashed first
+                result.hashes.merge(key, hash, (later, earlier) -> ImportJournal.sha1(earlier + "\n" + later));
+            }
+        }
+        return result;
+    }
+
+    private static String getRow(Entity entity) {
+        return entity.type + "\n" + entity.getId() + "\n" + entity.nodeId + "\n" + entity.rank + "\n" + entity.isPrimary + "\n"
+                + entity.oldUrl + "\n" + ImportPlanner.getFingerprint(entity);
+    }
+
+    private static boolean isLevelOne(Entity entity) {
+        return TOPIC_TYPE.equals(entity.type) && entity.parent != null && SUBJECT_TYPE.equals(entity.parent.type);
+    }
+
+    private static boolean isLevelTwo(Entity entity) {
+        return TOPIC_TYPE.equals(entity.type) && entity.parent != null && isLevelOne(entity.parent);
+    }
+
+    /**
+     * @return the file of the subject in the environment, next to its mirror, see {@link TaxonomyMirror#getFile}
+     */
+    public static Path getFile(Path directory, String endpoint, URI subjectId) {
+        return TaxonomyMirror.getEnvironmentDirectory(directory, endpoint).resolve(TaxonomyMirror.toFileName(subjectId.toString()) + ".hashes");
+    }
+
+    /**
+     * @return the hashes in the file, empty if there is none
+     */
+    public static SubtreeHashes read(Path file) throws IOException {
+        SubtreeHashes result = new SubtreeHashes();
+        if (!Files.exists(file)) return result;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int hash = line.lastIndexOf('\t');
+            if (hash > 0) result.hashes.put(line.substring(0, hash), line.substring(hash + 1));
+        }
+        return result;
+    }
+
+    public void write(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        StringBuilder content = new StringBuilder();
+        hashes.forEach((key, hash) -> content.append(key).append('\t').append(hash).append('\n'));
+        Path written = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(written, content.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * @param entities entities of the sheet these hashes were computed from, in sheet order
+     * @return the entities that are not in a subtree with the same hash as before
+     */
+    public List<Entity> removeUnchanged(List<Entity> entities, SubtreeHashes previous) {
+        List<Entity> changed = new ArrayList<>();
+        Set<String> skipped = new TreeSet<>();
+        for (Entity entity : entities) {
+            String unchanged = getUnchangedSubtree(entity, previous);
+            if (unchanged != null) {
+                skipped.add(unchanged);
+            } else {
+                changed.add(entity);
+            }
+        }
+        if (!skipped.isEmpty()) {
+            log.info("Skipping {} of {} entities in {} unchanged subtrees", entities.size() - changed.size(), entities.size(), skipped.size());
+        }
+        return changed;
+    }
+
+    /**
+     * @return the key of the outermost unchanged subtree the entity is in, or null if it is in none
+     */
+    private String getUnchangedSubtree(Entity entity, SubtreeHashes previous) {
+        String unchanged = null;
+        for (; entity != null; entity = entity.parent) {
+            String key = keys.get(entity);
+            if (key != null && Objects.equals(hashes.get(key), previous.hashes.get(key))) unchanged = key;
+        }
+        return unchanged;
+    }
+}
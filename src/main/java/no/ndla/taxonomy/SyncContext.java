@@ -0,0 +1,136 @@
+package no.ndla.taxonomy;
+
+import no.ndla.taxonomy.client.TaxonomyRestClient;
+import no.ndla.taxonomy.client.TranslationIndexDocument;
+import no.ndla.taxonomy.client.resources.FilterIndexDocument;
+import no.ndla.taxonomy.client.resources.ResourceTypeIndexDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static no.ndla.taxonomy.Importer.*;
+
+/**
+ * The resource types, filters and translations of one subject, topic or resource, as far as the importer knows them.
+ * <p>
+ * Each collection is read from the API the first time it is needed and patched by the write-through callbacks
+ * of the operations that change it, so it is read at most once per run however many rows refer to the entity.
+ * The collections of an entity created during this run start out empty and are never read.
+ * Connections to parents are kept in {@link SubjectTreeSnapshot} and {@link TopicResourceIndex} instead.
+ */
+public class SyncContext {
+    private static final Logger log = LoggerFactory.getLogger("importer");
+
+    private final TaxonomyRestClient restClient;
+    private final URI id;
+    private final String type;
+    private List<ResourceTypeIndexDocument> resourceTypes;
+    private List<FilterIndexDocument> filters;
+    private Map<String, String> translations;
+
+    private SyncContext(TaxonomyRestClient restClient, URI id, String type) {
+        this.restClient = restClient;
+        this.id = id;
+        this.type = type;
+    }
+
+    /**
+     * For an entity that exists in the API, whose collections are read when first needed.
+     */
+    public static SyncContext existing(TaxonomyRestClient restClient, URI id, String type) {
+        return new SyncContext(restClient, id, type);
+    }
+
+    /**
+     * For an entity created during this run, which has no resource types, filters or translations yet.
+     */
+    public static SyncContext created(TaxonomyRestClient restClient, URI id, String type) {
+        SyncContext context = new SyncContext(restClient, id, type);
+        context.resourceTypes = new CopyOnWriteArrayList<>();
+        context.filters = new CopyOnWriteArrayList<>();
+        context.translations = Collections.synchronizedMap(new HashMap<>());
+        return context;
+    }
+
+    /**
+     * For an entity saved in a mirror, whose collections are those of the mirror, or read when first needed if the mirror lacks them.
+     */
+    public static SyncContext restored(TaxonomyRestClient restClient, URI id, TaxonomyMirror.MirroredEntity entity) {
+        SyncContext context = new SyncContext(restClient, id, entity.type);
+        if (entity.resourceTypes != null) context.resourceTypes = new CopyOnWriteArrayList<>(entity.resourceTypes);
+        if (entity.filters != null) context.filters = new CopyOnWriteArrayList<>(entity.filters);
+        if (entity.translations != null) context.translations = Collections.synchronizedMap(new HashMap<>(entity.translations));
+        return context;
+    }
+
+    /**
+     * Saves the collections that have been read or written to the entity of a mirror.
+     */
+    public synchronized void saveTo(TaxonomyMirror.MirroredEntity entity) {
+        if (resourceTypes != null) entity.resourceTypes = new ArrayList<>(resourceTypes);
+        if (filters != null) entity.filters = new ArrayList<>(filters);
+        if (translations != null) {
+            synchronized (translations) {
+                entity.translations = new TreeMap<>(translations);
+            }
+        }
+    }
+
+    public synchronized List<ResourceTypeIndexDocument> getResourceTypes() {
+        if (resourceTypes == null) {
+            resourceTypes = new CopyOnWriteArrayList<>(restClient.getResourceTypesForResource(id));
+        }
+        return resourceTypes;
+    }
+
+    public void addResourceType(String name, URI connectionId) {
+        ResourceTypeIndexDocument resourceType = new ResourceTypeIndexDocument();
+        resourceType.name = name;
+        resourceType.connectionId = connectionId;
+        getResourceTypes().add(resourceType);
+    }
+
+    public void removeResourceType(URI connectionId) {
+        getResourceTypes().removeIf(resourceType -> Objects.equals(resourceType.connectionId, connectionId));
+    }
+
+    public synchronized List<FilterIndexDocument> getFilters() {
+        if (filters == null) {
+            FilterIndexDocument[] current = type.equals(TOPIC_TYPE) ? restClient.getFiltersForTopic(id) : restClient.getFiltersForResource(id);
+            filters = new CopyOnWriteArrayList<>(current);
+        }
+        return filters;
+    }
+
+    public void addFilter(String name, URI connectionId) {
+        FilterIndexDocument filter = new FilterIndexDocument();
+        filter.name = name;
+        filter.connectionId = connectionId;
+        getFilters().add(filter);
+    }
+
+    /**
+     * @return the name of the entity by language, empty if they could not be read, so all of them are written
+     */
+    public synchronized Map<String, String> getTranslations() {
+        if (translations == null) {
+            translations = Collections.synchronizedMap(new HashMap<>());
+            try {
+                for (TranslationIndexDocument translation : restClient.getTranslations(restClient.getLocation(id, type))) {
+                    translations.put(translation.language, translation.name);
+                }
+            } catch (HttpClientErrorException e) {
+                log.warn("Could not read translations for {}, writing all: {}", id, e.getMessage());
+            }
+        }
+        return translations;
+    }
+
+    public void putTranslation(String language, String name) {
+        getTranslations().put(language, name);
+    }
+}
@@ -0,0 +1,245 @@
+package no.ndla.taxonomy;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.ndla.taxonomy.client.TaxonomyRestClient;
+import no.ndla.taxonomy.client.resources.FilterIndexDocument;
+import no.ndla.taxonomy.client.resources.ResourceIndexDocument;
+import no.ndla.taxonomy.client.resources.ResourceTypeIndexDocument;
+import no.ndla.taxonomy.client.subjects.SubjectIndexDocument;
+import no.ndla.taxonomy.client.topics.TopicIndexDocument;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static no.ndla.taxonomy.Importer.*;
+
+/**
+ * The state of one subject in one environment of the taxonomy API, as the importer left it, kept in a file between runs
+ * so the next import of the subject can start from it instead of reading the subject tree, the topics and resources of
+ * the sheet and their collections again.
+ * <p>
+ * Holds the subjects, topics and resources with their resource types, filters and translations as far as they were
+ * read or written, the subject topic and topic subtopic connections of the subject and the resources of the topics
+ * that were read, with connection URNs and ranks. It is saved by an import in which every entity succeeded, from the
+ * indexes the write-through callbacks of {@link ImportPlanner} keep up to date, and removed when the next import
+ * starts, so an import that fails half way leaves no mirror behind. Since anyone may write to the API in between, a
+ * mirror is only used if it is recent and a few of its entities and the resources of one of its topics, picked at
+ * random, are as it says.
+ */
+public class TaxonomyMirror {
+    public static final int VERSION = 1;
+    public static final int DEFAULT_SPOT_CHECKS = 5;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    public int version = VERSION;
+    public String endpoint;
+    public URI subjectId;
+    public long savedAt;
+    public Map<String, MirroredEntity> entities = new TreeMap<>();
+    public List<URI> topics = new ArrayList<>();
+    public List<Connection> subjectTopics = new ArrayList<>();
+    public List<Connection> topicSubtopics = new ArrayList<>();
+    public Map<String, List<Connection>> topicResources = new TreeMap<>();
+
+    /**
+     * A subject, topic or resource. Collections that were never read are left out, and are read when needed.
+     */
+    public static class MirroredEntity {
+        public String type;
+        public String name;
+        public URI contentUri;
+        public List<ResourceTypeIndexDocument> resourceTypes;
+        public List<FilterIndexDocument> filters;
+        public Map<String, String> translations;
+
+        Object toDocument(URI id) {
+            switch (type) {
+                case SUBJECT_TYPE:
+                    SubjectIndexDocument subject = new SubjectIndexDocument();
+                    subject.id = id;
+                    subject.name = name;
+                    subject.contentUri = contentUri;
+                    return subject;
+                case TOPIC_TYPE:
+                    TopicIndexDocument topic = new TopicIndexDocument();
+                    topic.id = id;
+                    topic.name = name;
+                    topic.contentUri = contentUri;
+                    return topic;
+                default:
+                    ResourceIndexDocument resource = new ResourceIndexDocument();
+                    resource.id = id;
+                    resource.name = name;
+                    resource.contentUri = contentUri;
+                    return resource;
+            }
+        }
+    }
+
+    public TaxonomyMirror() {
+    }
+
+    public TaxonomyMirror(String endpoint, URI subjectId) {
+        this.endpoint = endpoint;
+        this.subjectId = subjectId;
+    }
+
+    /**
+     * @return the file of the subject in the environment, e.g. <code>api.test.ndla.no_443/urn_subject_1.json</code>
+     */
+    public static Path getFile(Path directory, String endpoint, URI subjectId) {
+        return getEnvironmentDirectory(directory, endpoint).resolve(toFileName(subjectId.toString()) + ".json");
+    }
+
+    /**
+     * @return the directory of the environment, named after the host and port of its endpoint
+     */
+    static Path getEnvironmentDirectory(Path directory, String endpoint) {
+        return directory.resolve(getEnvironmentName(endpoint));
+    }
+
+    /**
+     * @return the host and port of the endpoint, e.g. <code>api.test.ndla.no_443</code>, for use in file names
+     */
+    static String getEnvironmentName(String endpoint) {
+        URI uri = URI.create(endpoint);
+        String environment = uri.getHost() != null ? uri.getHost() + "_" + getPort(uri) : endpoint;
+        return toFileName(environment);
+    }
+
+    private static int getPort(URI uri) {
+        if (uri.getPort() >= 0) return uri.getPort();
+        return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    static String toFileName(String name) {
+        return name.replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+
+    /**
+     * @return the mirror, or null if there is none
+     */
+    public static TaxonomyMirror read(Path file) throws IOException {
+        if (!Files.exists(file)) return null;
+        return objectMapper.readValue(file.toFile(), TaxonomyMirror.class);
+    }
+
+    /**
+     * Writes the mirror to a file next to the given one and moves it in place, so a mirror is never half written.
+     */
+    public void write(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        savedAt = System.currentTimeMillis();
+        Path written = file.resolveSibling(file.getFileName() + ".tmp");
+        objectMapper.writeValue(written.toFile(), this);
+        Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param document an entity as read from the API or recorded by {@link ExistenceIndex}
+     */
+    public void putEntity(URI id, Object document) {
+        if (document instanceof SubjectIndexDocument) {
+            SubjectIndexDocument subject = (SubjectIndexDocument) document;
+            putEntity(id, SUBJECT_TYPE, subject.name, subject.contentUri);
+        } else if (document instanceof TopicIndexDocument) {
+            TopicIndexDocument topic = (TopicIndexDocument) document;
+            putEntity(id, TOPIC_TYPE, topic.name, topic.contentUri);
+        } else if (document instanceof ResourceIndexDocument) {
+            ResourceIndexDocument resource = (ResourceIndexDocument) document;
+            putEntity(id, RESOURCE_TYPE, resource.name, resource.contentUri);
+        }
+    }
+
+    public void putEntity(URI id, String type, String name, URI contentUri) {
+        MirroredEntity entity = new MirroredEntity();
+        entity.type = type;
+        entity.name = name;
+        entity.contentUri = contentUri;
+        entities.put(id.toString(), entity);
+    }
+
+    public MirroredEntity getEntity(URI id) {
+        return entities.get(id.toString());
+    }
+
+    /**
+     * Checks that the mirror belongs to the environment and subject, is not too old and agrees with the API on a few
+     * entities and on the resources of one topic.
+     *
+     * @return why the mirror cannot be used, or null if it can
+     */
+    public String check(TaxonomyRestClient restClient, URI subjectId, long maxAgeMillis, int spotChecks) {
+        if (version != VERSION) return "version " + version + " is not " + VERSION;
+        if (!Objects.equals(endpoint, restClient.getUrlBase())) return "it is of " + endpoint;
+        if (!Objects.equals(this.subjectId, subjectId)) return "it is of " + this.subjectId;
+        long age = System.currentTimeMillis() - savedAt;
+        if (age > maxAgeMillis) return "it is " + age / 60_000 + " minutes old";
+
+        Random random = new Random();
+        List<String> ids = new ArrayList<>(entities.keySet());
+        Collections.shuffle(ids, random);
+        for (String id : ids.subList(0, Math.min(spotChecks, ids.size()))) {
+            String difference = checkEntity(restClient, URI.create(id), entities.get(id));
+            if (difference != null) return difference;
+        }
+
+        List<String> topicIds = new ArrayList<>(topicResources.keySet());
+        if (spotChecks > 0 && !topicIds.isEmpty()) {
+            URI topicId = URI.create(topicIds.get(random.nextInt(topicIds.size())));
+            Map<URI, URI> mirrored = new HashMap<>();
+            for (Connection connection : topicResources.get(topicId.toString())) {
+                mirrored.put(connection.childId, connection.id);
+            }
+            Map<URI, URI> current = new HashMap<>();
+            for (no.ndla.taxonomy.client.topics.ResourceIndexDocument resource : restClient.getResourcesForTopic(topicId)) {
+                current.put(resource.id, resource.connectionId);
+            }
+            if (!mirrored.equals(current)) return "the resources of " + topicId + " have changed";
+        }
+        return null;
+    }
+
+    private String checkEntity(TaxonomyRestClient restClient, URI id, MirroredEntity entity) {
+        String name;
+        URI contentUri;
+        switch (entity.type) {
+            case SUBJECT_TYPE:
+                SubjectIndexDocument subject = restClient.findSubject(id);
+                if (subject == null) return id + " no longer exists";
+                name = subject.name;
+                contentUri = subject.contentUri;
+                break;
+            case TOPIC_TYPE:
+                TopicIndexDocument topic = restClient.findTopic(id);
+                if (topic == null) return id + " no longer exists";
+                name = topic.name;
+                contentUri = topic.contentUri;
+                break;
+            default:
+                ResourceIndexDocument resource = restClient.findResource(id);
+                if (resource == null) return id + " no longer exists";
+                name = resource.name;
+                contentUri = resource.contentUri;
+        }
+        if (!Objects.equals(name, entity.name) || !Objects.equals(contentUri, entity.contentUri)) return id + " has changed";
+        return null;
+    }
+
+    public int getConnections() {
+        int connections = subjectTopics.size() + topicSubtopics.size();
+        for (List<Connection> resources : topicResources.values()) {
+            connections += resources.size();
+        }
+        return connections;
+    }
+}
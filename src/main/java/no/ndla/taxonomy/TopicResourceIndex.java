@@ -0,0 +1,116 @@
+package no.ndla.taxonomy;
+
+import no.ndla.taxonomy.client.AsyncTaxonomyRestClient;
+import no.ndla.taxonomy.client.TaxonomyRestClient;
+import no.ndla.taxonomy.client.topics.ResourceIndexDocument;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Index of topic to resource connections, keyed by topic and resource URN.
+ * <p>
+ * The resources of a topic are fetched the first time the topic is looked up and patched locally
+ * as the importer adds and updates connections, so each topic is read at most once per run, and not at all if
+ * it is restored from a {@link TaxonomyMirror}. The first caller to look up a topic reads it, while concurrent
+ * callers asking for the same topic wait for the result; callers asking for other topics are not held up.
+ * A failed read is not remembered, so the next caller tries again.
+ */
+public class TopicResourceIndex {
+    private final TaxonomyRestClient restClient;
+    private final Map<URI, CompletableFuture<Map<URI, Connection>>> resourcesByTopic = new ConcurrentHashMap<>();
+
+    public TopicResourceIndex(TaxonomyRestClient restClient) {
+        this.restClient = restClient;
+    }
+
+    public Connection get(URI topicId, URI resourceId) {
+        return getResources(topicId).get(resourceId);
+    }
+
+    public Map<URI, Connection> getResources(URI topicId) {
+        CompletableFuture<Map<URI, Connection>> resources = resourcesByTopic.get(topicId);
+        if (resources == null) {
+            CompletableFuture<Map<URI, Connection>> loading = new CompletableFuture<>();
+            resources = resourcesByTopic.putIfAbsent(topicId, loading);
+            if (resources == null) {
+                try {
+                    loading.complete(load(topicId));
+                } catch (RuntimeException e) {
+                    resourcesByTopic.remove(topicId, loading);
+                    loading.completeExceptionally(e);
+                    throw e;
+                }
+                resources = loading;
+            }
+        }
+        return AsyncTaxonomyRestClient.join(resources);
+    }
+
+    /**
+     * Records that a topic has no resources, used for topics created during this run.
+     */
+    public void markEmpty(URI topicId) {
+        resourcesByTopic.putIfAbsent(topicId, CompletableFuture.completedFuture(new ConcurrentHashMap<>()));
+    }
+
+    /**
+     * Records the resources of a topic as saved in a mirror, so they are not read again.
+     */
+    public void restore(URI topicId, List<Connection> connections) {
+        Map<URI, Connection> resources = new ConcurrentHashMap<>();
+        for (Connection connection : connections) {
+            resources.put(connection.childId, connection);
+        }
+        resourcesByTopic.put(topicId, CompletableFuture.completedFuture(resources));
+    }
+
+    /**
+     * Saves the resources of the topics that have been read or restored to a mirror.
+     */
+    public void saveTo(TaxonomyMirror mirror) {
+        forEachLoaded((topicId, resources) -> mirror.topicResources.put(topicId.toString(), new ArrayList<>(resources.values())));
+    }
+
+    public void put(Connection connection) {
+        getResources(connection.parentId).put(connection.childId, connection);
+        setPrimary(connection, connection.primary);
+    }
+
+    public void update(Connection connection, int rank, boolean primary) {
+        connection.rank = rank;
+        setPrimary(connection, primary);
+    }
+
+    private void setPrimary(Connection connection, boolean primary) {
+        connection.primary = primary;
+        if (!primary) return;
+        // A resource can only have one primary topic, the API demotes the others
+        forEachLoaded((topicId, resources) -> {
+            Connection other = resources.get(connection.childId);
+            if (other != null && other != connection) other.primary = false;
+        });
+    }
+
+    private void forEachLoaded(BiConsumer<URI, Map<URI, Connection>> action) {
+        resourcesByTopic.forEach((topicId, resources) -> {
+            // topics still being read, or that failed to be read, have nothing to visit yet
+            if (resources.isDone() && !resources.isCompletedExceptionally()) action.accept(topicId, resources.join());
+        });
+    }
+
+    private Map<URI, Connection> load(URI topicId) {
+        Map<URI, Connection> resources = new ConcurrentHashMap<>();
+        for (ResourceIndexDocument resource : restClient.getResourcesForTopic(topicId)) {
+            int rank = resource.rank != null ? resource.rank : Connection.UNKNOWN_RANK;
+            boolean primary = resource.isPrimary != null && resource.isPrimary;
+            resources.put(resource.id, new Connection(resource.connectionId, topicId, resource.id, rank, primary));
+        }
+        return resources;
+    }
+}
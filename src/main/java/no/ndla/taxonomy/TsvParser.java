@@ -1,5 +1,8 @@
 package no.ndla.taxonomy;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.net.URI;
 import java.util.*;
 
@@ -7,6 +10,7 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 public class TsvParser implements Iterator<Entity> {
+    private static final Logger log = LoggerFactory.getLogger("parser");
 
     public static final String RESOURCE_TYPE = "Ressurstype";
     public static final String SUB_RESOURCE_TYPE = "Subressurstype";
@@ -19,15 +23,26 @@ public class TsvParser implements Iterator<Entity> {
     private static final String IS_SECONDARY_FIELD = "Sekundærtilknytning";
     private Map<String, ResourceType> resourceTypes;
 
-    private StringIterator lines;
+    private TsvTokenizer row;
     private ColumnMap columnMap;
+    private int importColumn;
+    private int topicLevelOneColumn;
+    private int topicLevelTwoColumn;
+    private int topicLevelThreeColumn;
+    private int learningResourceColumn;
+    private int nodeIdColumn;
+    private int translationColumn;
+    private int resourceTypeColumn;
+    private int subResourceTypeColumn;
+    private int isSecondaryColumn;
+    private int[] filterColumns;
+    private int[] relevanceColumns;
     private Entity currentSubject;
     private Entity currentLevelOneTopic;
     private Entity currentLevelTwoTopic;
     private Entity currentLevelThreeTopic;
 
     private Entity result;
-    private String[] columns;
     private int currentResourceRank;
     private int currentTopicLevelOneRank;
     private int currentTopicLevelTwoRank;
@@ -38,13 +53,41 @@ public class TsvParser implements Iterator<Entity> {
     }
 
     public TsvParser(StringIterator lines, Entity subject) {
-        this.lines = lines;
+        this(new TsvTokenizer(lines), subject);
+    }
+
+    public TsvParser(TsvTokenizer row, Entity subject) {
+        this.row = row;
         this.currentSubject = subject;
         this.columnMap = new ColumnMap();
         assertCorrectHeaderFieldsPresent();
+        findColumns();
         buildResourceTypeParents();
     }
 
+    /**
+     * Looks up the columns once, so reading a row does not involve the column names.
+     */
+    private void findColumns() {
+        importColumn = columnMap.indexOf("Import");
+        topicLevelOneColumn = columnMap.indexOf(TOPIC_LEVEL_ONE);
+        topicLevelTwoColumn = columnMap.indexOf(TOPIC_LEVEL_TWO);
+        topicLevelThreeColumn = columnMap.indexOf(TOPIC_LEVEL_THREE);
+        learningResourceColumn = columnMap.indexOf(LEARNING_RESOURCE);
+        nodeIdColumn = columnMap.indexOf(NODE_ID_FIELD);
+        translationColumn = columnMap.indexOf("nn");
+        resourceTypeColumn = columnMap.indexOf(RESOURCE_TYPE);
+        subResourceTypeColumn = columnMap.indexOf(SUB_RESOURCE_TYPE);
+        isSecondaryColumn = columnMap.indexOf(IS_SECONDARY_FIELD);
+
+        filterColumns = new int[columnMap.count("Filter")];
+        relevanceColumns = new int[filterColumns.length];
+        for (int i = 0; i < filterColumns.length; i++) {
+            filterColumns[i] = columnMap.get("Filter", i);
+            relevanceColumns[i] = columnMap.get("Relevans", i);
+        }
+    }
+
     private void assertCorrectHeaderFieldsPresent() {
         if(!hasField(RESOURCE_TYPE)) {
             throw new MissingParameterException(RESOURCE_TYPE);
@@ -125,33 +168,30 @@ public class TsvParser implements Iterator<Entity> {
 
     @Override
     public Entity next() {
-        String line = lines.next();
-        if (isBlank(line)) return null;
-
-        columns = line.split("\t");
+        if (!row.nextRow() || row.isBlankRow()) return null;
 
-        if (hasField("Import")) {
-            String doImport = getField("Import");
+        if (importColumn >= 0) {
+            String doImport = getField(importColumn);
             if (isBlank(doImport)) return null;
         }
 
-        System.out.println("Importing line: ");
-        System.out.println(line);
+        if (log.isDebugEnabled()) log.debug("Importing line {}: {}", row.getLineNumber(), row.getLine());
         result = new Entity();
+        result.lineNumber = row.getLineNumber();
 
         setEntityLevelInformation();
         setTranslatedName();
         boolean foundNodeId = setNodeId();
         if (!foundNodeId) {
             if (result.type.equals(Importer.TOPIC_TYPE)) {
-                throw new MissingParameterException("Topic is missing nodeid", lines.getLineNumber());
+                throw new MissingParameterException("Topic is missing nodeid", row.getLineNumber());
             }
-            System.out.println("Skipping entity " + result.name + ", no nodeid.");
+            log.info("Skipping entity {} on line {}, no nodeid.", result.name, row.getLineNumber());
             return null;
         }
         if (result.type.equals(Importer.RESOURCE_TYPE)) {
             if(!setResourceType()) {
-                System.out.println("Skipping entity " + result.nodeId +  ", no resource type.");
+                log.info("Skipping entity {} on line {}, no resource type.", result.nodeId, row.getLineNumber());
                 return null;
             }
         }
@@ -163,19 +203,18 @@ public class TsvParser implements Iterator<Entity> {
     }
 
     private void setSecondary() {
-        String shouldSetPrimary = getField(IS_SECONDARY_FIELD);
+        String shouldSetPrimary = getField(isSecondaryColumn);
         result.isPrimary = isBlank(shouldSetPrimary);
     }
 
     private void setFilters() {
-        for (int i = 0; i < columnMap.count("Filter"); i++) {
-            int columnIndex = columnMap.get("Filter", i);
-            String filterName = getField(columnIndex);
-            String relevanceName = getField(columnMap.get("Relevans", i));
+        for (int i = 0; i < filterColumns.length; i++) {
+            String filterName = getField(filterColumns[i]);
+            String relevanceName = getField(relevanceColumns[i]);
 
             if (isBlank(filterName)) continue;
 
-            System.out.println("Setting filter " + filterName + " with relevance " + relevanceName);
+            log.debug("Setting filter {} with relevance {}", filterName, relevanceName);
             result.filters.add(new Filter() {{
                 name = filterName;
                 relevance = new Relevance() {{
@@ -189,26 +228,20 @@ public class TsvParser implements Iterator<Entity> {
         return columnMap.containsKey(columnName);
     }
 
-    private String getField(String columnName) {
-        if (!hasField(columnName)) return null;
-        int columnIndex = columnMap.get(columnName);
-        return getField(columnIndex);
-    }
-
+    /**
+     * @return the field in the current row, "" if it is blank or null if the sheet has no such column
+     */
     private String getField(int column) {
-        if (columns.length > column && isNotBlank(columns[column])) {
-            return getString(columns[column]);
+        if (column < 0) return null;
+        if (row.getFieldCount() > column && !row.isBlank(column)) {
+            return row.getField(column);
         }
         return "";
     }
 
-    private static String getString(String value) {
-        return value == null ? "" : value;
-    }
-
     @Override
     public boolean hasNext() {
-        return lines.hasNext();
+        return row.hasNext();
     }
 
     private void setParent() {
@@ -221,15 +254,14 @@ public class TsvParser implements Iterator<Entity> {
         } else {
             result.parent = currentSubject;
         }
-        System.out.println("Parent: " + result.parent.nodeId);
-
+        log.debug("Parent: {}", result.parent.nodeId);
     }
 
     private void setEntityLevelInformation() {
-        String topicLevel1 = getField(TOPIC_LEVEL_ONE);
-        String topicLevel2 = getField(TOPIC_LEVEL_TWO);
-        String topicLevel3 = getField(TOPIC_LEVEL_THREE);
-        String resourceName = getField(LEARNING_RESOURCE);
+        String topicLevel1 = getField(topicLevelOneColumn);
+        String topicLevel2 = getField(topicLevelTwoColumn);
+        String topicLevel3 = getField(topicLevelThreeColumn);
+        String resourceName = getField(learningResourceColumn);
 
         if (isNotBlank(topicLevel1)) {
             result.type = Importer.TOPIC_TYPE;
@@ -241,7 +273,7 @@ public class TsvParser implements Iterator<Entity> {
             currentTopicLevelTwoRank = 0;
             currentTopicLevelThreeRank = 0;
             currentResourceRank = 0;
-            System.out.println("Setting topic level 1");
+            log.debug("Setting topic level 1");
         } else if (isNotBlank(topicLevel2)) {
             result.type = Importer.TOPIC_TYPE;
             result.name = topicLevel2;
@@ -250,28 +282,28 @@ public class TsvParser implements Iterator<Entity> {
             result.rank = ++currentTopicLevelTwoRank;
             currentTopicLevelThreeRank = 0;
             currentResourceRank = 0;
-            System.out.println("Setting topic level 2");
+            log.debug("Setting topic level 2");
         } else if (isNotBlank(topicLevel3)) {
             result.type = Importer.TOPIC_TYPE;
             result.name = topicLevel3;
             currentLevelThreeTopic = result;
             result.rank = ++currentTopicLevelThreeRank;
             currentResourceRank = 0;
-            System.out.println("Setting topic level 3");
+            log.debug("Setting topic level 3");
         } else if (isNotBlank(resourceName)) {
             result.type = Importer.RESOURCE_TYPE;
             result.name = resourceName;
             result.rank = ++currentResourceRank;
-            System.out.println("Setting resource");
+            log.debug("Setting resource");
         } else {
-            throw new MissingParameterException("Entity must be named", lines.getLineNumber());
+            throw new MissingParameterException("Entity must be named", row.getLineNumber());
         }
     }
 
     private boolean setNodeId() {
-        String urlString = getField(NODE_ID_FIELD);
+        String urlString = getField(nodeIdColumn);
         if (isBlank(urlString)) {
-            System.out.println("Nodeid not found.");
+            log.debug("Nodeid not found.");
             return false;
         }
 
@@ -292,13 +324,13 @@ public class TsvParser implements Iterator<Entity> {
         try {
             new Integer(nodeId);
         } catch (Exception e) {
-            System.out.println("Line " + lines.getLineNumber() + " Node id: " + nodeId + " is not a number.");
+            log.warn("Line {} Node id: {} is not a number.", row.getLineNumber(), nodeId);
             throw e;
         }
     }
 
     private void setTranslatedName() {
-        String nn = getField("nn");
+        String nn = getField(translationColumn);
         if (isBlank(nn)) return;
 
         result.translations.put("nn", new Translation() {{
@@ -308,10 +340,10 @@ public class TsvParser implements Iterator<Entity> {
 
 
     private boolean setResourceType() {
-        String subresourceType = getField(SUB_RESOURCE_TYPE);
-        String resourceType = getField(RESOURCE_TYPE);
+        String subresourceType = getField(subResourceTypeColumn);
+        String resourceType = getField(resourceTypeColumn);
         if (isBlank(resourceType) && isBlank(subresourceType)) {
-            System.out.println("No resource type found.");
+            log.debug("No resource type found.");
             return false;
         }
 
@@ -320,11 +352,11 @@ public class TsvParser implements Iterator<Entity> {
             subresourceType = subresourceType.trim();
             result.resourceTypes.add(resourceTypes.get(resourceTypes.get(subresourceType).parentName));
             result.resourceTypes.add(resourceTypes.get(subresourceType));
-            System.out.println("Adding rt " + subresourceType + " with parent: " + resourceTypes.get(subresourceType).parentName);
+            log.debug("Adding rt {} with parent: {}", subresourceType, resourceTypes.get(subresourceType).parentName);
         } else {
             resourceType = resourceType.trim();
             result.resourceTypes.add(resourceTypes.get(resourceType));
-            System.out.println("Adding rt: " + resourceType);
+            log.debug("Adding rt: {}", resourceType);
         }
         return true;
     }
@@ -334,13 +366,13 @@ public class TsvParser implements Iterator<Entity> {
         if (isNotBlank(resourceType)) {
             resourceType = resourceType.trim();
             if (resourceTypes.get(resourceType) == null) {
-                throw new MissingParameterException("Unknown resource type: " + resourceType, lines.getLineNumber());
+                throw new MissingParameterException("Unknown resource type: " + resourceType, row.getLineNumber());
             }
         }
         if (isNotBlank(subresourceType)) {
             subresourceType = subresourceType.trim();
             if (resourceTypes.get(subresourceType) == null) {
-                throw new MissingParameterException("Unknown resource type: " + subresourceType, lines.getLineNumber());
+                throw new MissingParameterException("Unknown resource type: " + subresourceType, row.getLineNumber());
             }
         }
     }
@@ -354,11 +386,13 @@ public class TsvParser implements Iterator<Entity> {
 
         ColumnMap() {
             String line = "";
-            while (!line.contains(LEARNING_RESOURCE)) line = lines.next();
+            while (!line.contains(LEARNING_RESOURCE)) {
+                if (!row.nextRow()) throw new MissingParameterException(LEARNING_RESOURCE);
+                line = row.getLine();
+            }
 
-            String[] specification = line.split("\t");
-            for (int i = 0; i < specification.length; i++) {
-                put(specification[i], i);
+            for (int i = 0; i < row.getFieldCount(); i++) {
+                put(row.getField(i), i);
             }
         }
 
@@ -372,8 +406,8 @@ public class TsvParser implements Iterator<Entity> {
             return entries.containsKey(columnName);
         }
 
-        public int get(String columnName) {
-            return get(columnName, 0);
+        public int indexOf(String columnName) {
+            return containsKey(columnName) ? get(columnName, 0) : -1;
         }
 
         public int get(String columnName, int i) {
@@ -0,0 +1,237 @@
+package no.ndla.taxonomy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits tab separated input into rows and fields without creating a string per row or per field.
+ * <p>
+ * Input is decoded into a reusable buffer, and a row is kept as offsets into a reusable char array, so only the
+ * fields that are actually read become strings. The end of the input is only assumed when the channel says so,
+ * a pipe that is slow to deliver the next row is waited for.
+ */
+public class TsvTokenizer {
+    public static final int HEADER_LINES_IN_SPREADSHEET = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final TsvParser.StringIterator lines;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes;
+    private final CharBuffer chars;
+    private boolean endOfInput;
+    private boolean drained;
+    private int linesRead;
+
+    private Row current = new Row();
+    private Row ahead = new Row();
+    private boolean peeked;
+    private boolean available;
+
+    /**
+     * Reads UTF-8 encoded rows from a channel, e.g. a {@link java.nio.channels.FileChannel} or standard input.
+     */
+    public TsvTokenizer(ReadableByteChannel channel) {
+        this.channel = channel;
+        this.lines = null;
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        this.chars = CharBuffer.allocate(BUFFER_SIZE);
+        this.chars.flip();
+    }
+
+    /**
+     * Reads rows from lines that are already in memory.
+     */
+    public TsvTokenizer(TsvParser.StringIterator lines) {
+        this.channel = null;
+        this.lines = lines;
+        this.decoder = null;
+        this.bytes = null;
+        this.chars = null;
+    }
+
+    public boolean hasNext() {
+        if (!peeked) {
+            available = lines != null ? readLine(ahead) : readChannel(ahead);
+            peeked = true;
+        }
+        return available;
+    }
+
+    /**
+     * Moves to the next row.
+     *
+     * @return false if there are no more rows
+     */
+    public boolean nextRow() {
+        if (!hasNext()) return false;
+        peeked = false;
+
+        Row row = current;
+        current = ahead;
+        ahead = row;
+        current.split();
+        return true;
+    }
+
+    public int getLineNumber() {
+        return current.lineNumber;
+    }
+
+    public int getFieldCount() {
+        return current.fieldCount;
+    }
+
+    public String getField(int field) {
+        return new String(current.chars, current.fieldStarts[field], current.fieldEnds[field] - current.fieldStarts[field]);
+    }
+
+    public boolean isBlank(int field) {
+        for (int i = current.fieldStarts[field]; i < current.fieldEnds[field]; i++) {
+            if (!Character.isWhitespace(current.chars[i])) return false;
+        }
+        return true;
+    }
+
+    public boolean isBlankRow() {
+        for (int i = 0; i < current.length; i++) {
+            if (!Character.isWhitespace(current.chars[i])) return false;
+        }
+        return true;
+    }
+
+    public String getLine() {
+        return new String(current.chars, 0, current.length);
+    }
+
+    private boolean readLine(Row row) {
+        if (!lines.hasNext()) return false;
+        String line = lines.next();
+        if (line == null) return false;
+
+        row.length = 0;
+        row.append(line);
+        row.lineNumber = lines.getLineNumber();
+        return true;
+    }
+
+    private boolean readChannel(Row row) {
+        row.length = 0;
+        boolean read = false;
+        try {
+            while (true) {
+                if (!chars.hasRemaining() && !fill()) break;
+                read = true;
+
+                char[] buffer = chars.array();
+                int start = chars.position();
+                int end = start;
+                int limit = chars.limit();
+                while (end < limit && buffer[end] != '\n') end++;
+                row.append(buffer, start, end - start);
+
+                if (end < limit) {
+                    chars.position(end + 1);
+                    if (row.length > 0 && row.chars[row.length - 1] == '\r') row.length--;
+                    break;
+                }
+                chars.position(end);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!read) return false;
+
+        row.lineNumber = linesRead++ + HEADER_LINES_IN_SPREADSHEET;
+        return true;
+    }
+
+    /**
+     * Decodes more input into the char buffer, blocking until some is available.
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill() throws IOException {
+        if (drained) return false;
+
+        chars.clear();
+        while (chars.position() == 0 && !drained) {
+            if (!endOfInput && channel.read(bytes) < 0) {
+                endOfInput = true;
+            }
+            bytes.flip();
+            CoderResult result = decoder.decode(bytes, chars, endOfInput);
+            if (result.isError()) result.throwException();
+            bytes.compact();
+
+            if (endOfInput) {
+                decoder.flush(chars);
+                drained = true;
+            }
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+
+    private static class Row {
+        char[] chars = new char[1024];
+        int length;
+        int lineNumber;
+        int[] fieldStarts = new int[32];
+        int[] fieldEnds = new int[32];
+        int fieldCount;
+
+        void append(String line) {
+            ensureCapacity(length + line.length());
+            line.getChars(0, line.length(), chars, length);
+            length += line.length();
+        }
+
+        void append(char[] buffer, int offset, int count) {
+            ensureCapacity(length + count);
+            System.arraycopy(buffer, offset, chars, length, count);
+            length += count;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > chars.length) {
+                char[] grown = new char[Math.max(capacity, chars.length * 2)];
+                System.arraycopy(chars, 0, grown, 0, length);
+                chars = grown;
+            }
+        }
+
+        void split() {
+            fieldCount = 0;
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (chars[i] == '\t') {
+                    addField(start, i);
+                    start = i + 1;
+                }
+            }
+            addField(start, length);
+        }
+
+        private void addField(int start, int end) {
+            if (fieldCount == fieldStarts.length) {
+                fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+                fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+            }
+            fieldStarts[fieldCount] = start;
+            fieldEnds[fieldCount] = end;
+            fieldCount++;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package no.ndla.taxonomy.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of calls to the API in flight at once, adapting the limit to the latency and errors observed.
+ * <p>
+ * Calls are sampled in windows of at least {@link #MIN_WINDOW} calls, or as many as the current limit. After each
+ * window the limit is adjusted additive increase, multiplicative decrease style: it is cut by a quarter if a call
+ * in the window was refused or failed on the server side, and by a tenth if the average latency of the window
+ * was more than twice the lowest window average seen, the latency of an unloaded API. Otherwise it grows by one
+ * if the calls used up the limit. The lowest average drifts up slowly, so a permanently slower API does not
+ * keep the limit down. Each change and its reason is kept for the summary.
+ */
+public class AdaptiveConcurrencyLimiter {
+    private static final Logger log = LoggerFactory.getLogger("http");
+
+    static final int MIN_WINDOW = 10;
+    static final double LATENCY_TOLERANCE = 2.0;
+    static final double ERROR_DECREASE = 0.75;
+    static final double LATENCY_DECREASE = 0.9;
+    static final double BASELINE_DRIFT = 1.01;
+    private static final int RECENT_CHANGES = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private int limit;
+    private int inFlight;
+    private int lowestLimit;
+    private int highestLimit;
+
+    private int samples;
+    private long totalNanos;
+    private boolean failed;
+    private boolean saturated;
+    private double baselineNanos = Double.MAX_VALUE;
+
+    private final Map<String, Integer> reasons = new TreeMap<>();
+    private final Deque<String> recentChanges = new ArrayDeque<>();
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) throw new IllegalArgumentException("Limits must be 1 <= min <= max, were " + minLimit + " and " + maxLimit);
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.lowestLimit = limit;
+        this.highestLimit = limit;
+    }
+
+    /**
+     * Waits until a call may be made. Must be followed by {@link #release(long, boolean)}.
+     */
+    public synchronized void acquire() throws InterruptedIOException {
+        while (inFlight >= limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the concurrency limit");
+            }
+        }
+        inFlight++;
+        if (inFlight >= limit) saturated = true;
+    }
+
+    /**
+     * @param latencyNanos time from sending the call until the response arrived or the call failed
+     * @param overloaded the API refused the call or failed on the server side, e.g. 429, 503 or a timeout
+     */
+    public synchronized void release(long latencyNanos, boolean overloaded) {
+        inFlight--;
+        samples++;
+        totalNanos += latencyNanos;
+        failed |= overloaded;
+        if (samples >= Math.max(MIN_WINDOW, limit)) adjust();
+        notifyAll();
+    }
+
+    private void adjust() {
+        double average = (double) totalNanos / samples;
+        baselineNanos = Math.min(baselineNanos * BASELINE_DRIFT, average);
+
+        if (failed) {
+            change((int) (limit * ERROR_DECREASE), "errors from the API");
+        } else if (average > baselineNanos * LATENCY_TOLERANCE) {
+            change((int) (limit * LATENCY_DECREASE), String.format("latency %d ms over twice the unloaded %d ms",
+                    TimeUnit.NANOSECONDS.toMillis((long) average), TimeUnit.NANOSECONDS.toMillis((long) baselineNanos)));
+        } else if (saturated) {
+            change(limit + 1, "limit reached with steady latency");
+        }
+        samples = 0;
+        totalNanos = 0;
+        failed = false;
+        saturated = inFlight >= limit;
+    }
+
+    private void change(int newLimit, String reason) {
+        newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if (newLimit == limit) return;
+
+        String change = limit + " -> " + newLimit + ": " + reason;
+        log.debug("Concurrency limit {}", change);
+        reasons.merge(reason.startsWith("latency ") ? "latency over twice the unloaded latency" : reason, 1, Integer::sum);
+        recentChanges.addLast(change);
+        if (recentChanges.size() > RECENT_CHANGES) recentChanges.removeFirst();
+        limit = newLimit;
+        lowestLimit = Math.min(lowestLimit, limit);
+        highestLimit = Math.max(highestLimit, limit);
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized String getStatistics() {
+        StringBuilder statistics = new StringBuilder("Concurrency limit: ").append(limit)
+                .append(" (ranged from ").append(lowestLimit).append(" to ").append(highestLimit).append(")");
+        reasons.forEach((reason, count) -> statistics.append(", ").append(count).append(" changes for ").append(reason));
+        if (!recentChanges.isEmpty()) {
+            statistics.append("\nLast changes: ").append(String.join(", ", recentChanges));
+        }
+        return statistics.toString();
+    }
+}
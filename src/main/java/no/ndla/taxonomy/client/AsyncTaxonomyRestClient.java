@@ -0,0 +1,143 @@
+package no.ndla.taxonomy.client;
+
+import no.ndla.taxonomy.LogContext;
+import no.ndla.taxonomy.Translation;
+import no.ndla.taxonomy.client.resources.ResourceIndexDocument;
+import no.ndla.taxonomy.client.subjects.FilterIndexDocument;
+import no.ndla.taxonomy.client.subjects.SubjectIndexDocument;
+import no.ndla.taxonomy.client.topics.TopicIndexDocument;
+
+import java.net.URI;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking variant of {@link TaxonomyRestClient}, running each call on a bounded pool of threads.
+ * <p>
+ * Calls go through the wrapped client and its RestTemplate, so they carry the same batch and authorization
+ * headers, and they log in the logging context of the caller. A failed call completes its future exceptionally
+ * with the exception the blocking client would have thrown, e.g. an <code>HttpClientErrorException</code>.
+ * When all threads are busy and the queue is full, the call runs on the caller's thread instead, which throttles
+ * the caller rather than queueing without bound.
+ */
+public class AsyncTaxonomyRestClient {
+    private static final AtomicInteger poolNumber = new AtomicInteger();
+
+    private final TaxonomyRestClient restClient;
+    private final ThreadPoolExecutor executor;
+
+    public AsyncTaxonomyRestClient(TaxonomyRestClient restClient, int threads) {
+        this.restClient = restClient;
+        int pool = poolNumber.incrementAndGet();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(threads * 16),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "taxonomy-client-" + pool + "-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public TaxonomyRestClient getRestClient() {
+        return restClient;
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> call) {
+        return CompletableFuture.supplyAsync(LogContext.wrap(call), executor);
+    }
+
+    public CompletableFuture<Void> run(Runnable call) {
+        return CompletableFuture.runAsync(LogContext.wrap(call), executor);
+    }
+
+    public CompletableFuture<SubjectIndexDocument> findSubject(URI id) {
+        return submit(() -> restClient.findSubject(id));
+    }
+
+    public CompletableFuture<TopicIndexDocument> findTopic(URI id) {
+        return submit(() -> restClient.findTopic(id));
+    }
+
+    public CompletableFuture<ResourceIndexDocument> findResource(URI id) {
+        return submit(() -> restClient.findResource(id));
+    }
+
+    public CompletableFuture<FilterIndexDocument[]> getFiltersForSubject(URI subjectId) {
+        return submit(() -> restClient.getFiltersForSubject(subjectId));
+    }
+
+    public CompletableFuture<URI> createResource(URI id, String name, URI contentUri) {
+        return submit(() -> restClient.createResource(id, name, contentUri));
+    }
+
+    public CompletableFuture<URI> createTopic(URI id, String name, URI contentUri) {
+        return submit(() -> restClient.createTopic(id, name, contentUri));
+    }
+
+    public CompletableFuture<URI> updateEntity(URI id, String name, URI contentUri, String entityType) {
+        return submit(() -> restClient.updateEntity(id, name, contentUri, entityType));
+    }
+
+    public CompletableFuture<URI> addSubjectTopic(URI subjectId, URI topicId, int rank) {
+        return submit(() -> restClient.addSubjectTopic(subjectId, topicId, rank));
+    }
+
+    public CompletableFuture<URI> addTopicSubtopic(URI topicId, URI subtopicId, int rank, boolean primary) {
+        return submit(() -> restClient.addTopicSubtopic(topicId, subtopicId, rank, primary));
+    }
+
+    public CompletableFuture<Void> updateTopicSubtopic(URI connectionId, int rank, boolean primary) {
+        return run(() -> restClient.updateTopicSubtopic(connectionId, rank, primary));
+    }
+
+    public CompletableFuture<URI> addTopicResource(URI topicId, URI resourceId, int rank, boolean primary) {
+        return submit(() -> restClient.addTopicResource(topicId, resourceId, rank, primary));
+    }
+
+    public CompletableFuture<Void> updateTopicResource(URI connectionId, int rank, boolean primary) {
+        return run(() -> restClient.updateTopicResource(connectionId, rank, primary));
+    }
+
+    public CompletableFuture<URI> addResourceResourceType(URI resourceId, URI resourceTypeId) {
+        return submit(() -> restClient.addResourceResourceType(resourceId, resourceTypeId));
+    }
+
+    public CompletableFuture<Void> removeResourceResourceType(URI connectionId) {
+        return run(() -> restClient.removeResourceResourceType(connectionId));
+    }
+
+    public CompletableFuture<URI> addResourceFilter(URI resourceId, URI filterId, URI relevanceId) {
+        return submit(() -> restClient.addResourceFilter(resourceId, filterId, relevanceId));
+    }
+
+    public CompletableFuture<URI> addTopicFilter(URI topicId, URI filterId, URI relevanceId) {
+        return submit(() -> restClient.addTopicFilter(topicId, filterId, relevanceId));
+    }
+
+    public CompletableFuture<Void> addTranslation(URI location, String language, Translation translation) {
+        return run(() -> restClient.addTranslation(location, language, translation));
+    }
+
+    public CompletableFuture<Void> addUrlMapping(String oldUrl, URI nodeId, URI oldSubject) {
+        return run(() -> restClient.addUrlMapping(oldUrl, nodeId, oldSubject));
+    }
+
+    /**
+     * Waits for a call to complete, throwing the exception the blocking client would have thrown if it failed.
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,268 @@
+package no.ndla.taxonomy.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.*;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+/**
+ * Counts the calls {@link TaxonomyRestClient} makes, per endpoint template, e.g. <code>GET /v1/topics/{id}/resources</code>.
+ * <p>
+ * For each endpoint it records the number of calls, a latency histogram, the size of the request and response bodies
+ * and the number of errors by status. The body sizes are counted above the transport, so with gzip they are the
+ * sizes before compression, not the bytes on the wire. Latency is measured from sending the request until the response is closed,
+ * so it includes reading the body. Many calls to a <code>GET</code> endpoint per entity point to an N+1 pattern.
+ */
+public class CallMetrics implements ClientHttpRequestInterceptor {
+    private static final Pattern ID = Pattern.compile("(?i)urn:.*|\\d+|[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        Endpoint endpoint = endpoints.computeIfAbsent(request.getMethod() + " " + getTemplate(request.getURI()), Endpoint::new);
+        endpoint.bodyBytesOut.addAndGet(body.length);
+        long start = System.nanoTime();
+        ClientHttpResponse response;
+        try {
+            response = execution.execute(request, body);
+        } catch (IOException | RuntimeException e) {
+            endpoint.record(System.nanoTime() - start, e.getClass().getSimpleName());
+            throw e;
+        }
+        return new MeasuredResponse(response, endpoint, start);
+    }
+
+    /**
+     * Replaces the IDs in the path of a URI by <code>{id}</code>, and the language of a translation by <code>{language}</code>.
+     */
+    static String getTemplate(URI uri) {
+        String[] segments = uri.getRawPath().split("/");
+        StringBuilder template = new StringBuilder();
+        for (int i = 1; i < segments.length; i++) {
+            String segment = segments[i];
+            template.append('/');
+            if ("translations".equals(segments[i - 1])) {
+                template.append("{language}");
+            } else if (ID.matcher(segment).matches()) {
+                template.append("{id}");
+            } else {
+                template.append(segment);
+            }
+        }
+        return template.length() == 0 ? "/" : template.toString();
+    }
+
+    public List<EndpointStatistics> getStatistics() {
+        List<EndpointStatistics> statistics = new ArrayList<>();
+        for (Endpoint endpoint : endpoints.values()) {
+            statistics.add(endpoint.getStatistics());
+        }
+        statistics.sort((a, b) -> Long.compare(b.totalMillis, a.totalMillis));
+        return statistics;
+    }
+
+    /**
+     * Formats the statistics as a table, the endpoints that took the most time in total first.
+     */
+    public String getTable() {
+        List<EndpointStatistics> statistics = getStatistics();
+        int width = "Endpoint".length();
+        for (EndpointStatistics endpoint : statistics) {
+            width = Math.max(width, endpoint.endpoint.length());
+        }
+        String rowFormat = "%-" + width + "s %8s %10s %8s %8s %8s %8s %12s %12s  %s%n";
+        StringBuilder table = new StringBuilder();
+        Formatter formatter = new Formatter(table, Locale.ROOT);
+        formatter.format(rowFormat, "Endpoint", "Calls", "Total ms", "p50 ms", "p95 ms", "p99 ms", "Max ms", "Body out", "Body in", "Errors");
+        for (EndpointStatistics endpoint : statistics) {
+            formatter.format(rowFormat, endpoint.endpoint, endpoint.calls, endpoint.totalMillis, endpoint.p50Millis, endpoint.p95Millis,
+                    endpoint.p99Millis, endpoint.maxMillis, endpoint.bodyBytesOut, endpoint.bodyBytesIn, endpoint.errors.isEmpty() ? "" : endpoint.errors);
+        }
+        return table.toString();
+    }
+
+    public void writeJson(File file) throws IOException {
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, getStatistics());
+    }
+
+    public static class EndpointStatistics {
+        public String endpoint;
+        public long calls;
+        public long totalMillis;
+        public long p50Millis;
+        public long p95Millis;
+        public long p99Millis;
+        public long maxMillis;
+        public long bodyBytesOut;
+        public long bodyBytesIn;
+        public Map<String, Long> errors = new TreeMap<>();
+    }
+
+    private static class Endpoint {
+        private final String name;
+        private final Histogram latency = new Histogram();
+        private final AtomicLong bodyBytesOut = new AtomicLong();
+        private final AtomicLong bodyBytesIn = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+        private Endpoint(String name) {
+            this.name = name;
+        }
+
+        private void record(long nanos, String error) {
+            latency.record(nanos);
+            if (error != null) {
+                errors.computeIfAbsent(error, key -> new AtomicLong()).incrementAndGet();
+            }
+        }
+
+        private EndpointStatistics getStatistics() {
+            EndpointStatistics statistics = new EndpointStatistics();
+            statistics.endpoint = name;
+            statistics.calls = latency.getCount();
+            statistics.totalMillis = latency.getTotal() / 1_000_000;
+            statistics.p50Millis = latency.getPercentile(50) / 1_000_000;
+            statistics.p95Millis = latency.getPercentile(95) / 1_000_000;
+            statistics.p99Millis = latency.getPercentile(99) / 1_000_000;
+            statistics.maxMillis = latency.getMax() / 1_000_000;
+            statistics.bodyBytesOut = bodyBytesOut.get();
+            statistics.bodyBytesIn = bodyBytesIn.get();
+            errors.forEach((error, count) -> statistics.errors.put(error, count.get()));
+            return statistics;
+        }
+    }
+
+    /**
+     * Latency histogram with buckets 5% apart, from one microsecond up to about five minutes.
+     * Percentiles are reported as the upper bound of their bucket, so they are at most 5% too high.
+     */
+    static class Histogram {
+        private static final double GROWTH = 1.05;
+        private static final int BUCKETS = 400;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, (int) Math.ceil(Math.log(micros) / Math.log(GROWTH)));
+            counts.incrementAndGet(bucket);
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getTotal() {
+            return total.get();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        long getPercentile(double percentile) {
+            long count = this.count.get();
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts.get(bucket);
+                if (seen >= rank) {
+                    return Math.min((long) (Math.pow(GROWTH, bucket) * 1000), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    private static class MeasuredResponse implements ClientHttpResponse {
+        private final ClientHttpResponse response;
+        private final Endpoint endpoint;
+        private final long start;
+        private InputStream body;
+        private boolean closed;
+
+        private MeasuredResponse(ClientHttpResponse response, Endpoint endpoint, long start) {
+            this.response = response;
+            this.endpoint = endpoint;
+            this.start = start;
+        }
+
+        @Override
+        public HttpStatus getStatusCode() throws IOException {
+            return response.getStatusCode();
+        }
+
+        @Override
+        public int getRawStatusCode() throws IOException {
+            return response.getRawStatusCode();
+        }
+
+        @Override
+        public String getStatusText() throws IOException {
+            return response.getStatusText();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return response.getHeaders();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                body = new FilterInputStream(response.getBody()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b != -1) endpoint.bodyBytesIn.incrementAndGet();
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int read = super.read(buffer, offset, length);
+                        if (read > 0) endpoint.bodyBytesIn.addAndGet(read);
+                        return read;
+                    }
+                };
+            }
+            return body;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            String error = null;
+            try {
+                int status = response.getRawStatusCode();
+                if (status >= 400) error = String.valueOf(status);
+            } catch (IOException e) {
+                error = e.getClass().getSimpleName();
+            }
+            response.close();
+            endpoint.record(System.nanoTime() - start, error);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package no.ndla.taxonomy.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+
+import java.io.*;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP transport for {@link TaxonomyRestClient} that keeps connections to the API alive between calls.
+ * <p>
+ * Connections are pooled by the JDK keep-alive cache. This factory bounds how many are in use at once, in total
+ * and per host, and always drains the response so the connection goes back to the pool, also for calls like
+ * <code>postForLocation</code> that never read the body. Responses are requested gzipped; request bodies are only
+ * gzipped when enabled, since the API has to be configured to accept them.
+ */
+public class PooledHttpRequestFactory implements ClientHttpRequestFactory {
+    private static final Logger log = LoggerFactory.getLogger("http");
+
+    private final SimpleClientHttpRequestFactory delegate = new SimpleClientHttpRequestFactory();
+    private final Semaphore total;
+    private final int maxPerRoute;
+    private final Map<String, Semaphore> routes = new ConcurrentHashMap<>();
+    private final boolean gzipRequests;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong gzippedResponses = new AtomicLong();
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicInteger peakLeased = new AtomicInteger();
+
+    public PooledHttpRequestFactory(int maxTotal, int maxPerRoute, int connectTimeout, int readTimeout, boolean gzipRequests) {
+        this.total = new Semaphore(maxTotal, true);
+        this.maxPerRoute = maxPerRoute;
+        this.gzipRequests = gzipRequests;
+        delegate.setConnectTimeout(connectTimeout);
+        delegate.setReadTimeout(readTimeout);
+    }
+
+    /**
+     * Lets the JDK keep-alive cache hold on to this many idle connections per host, its default of 5 is too low for
+     * a full pool. This is a setting for the whole process, read when the first connection is opened, so it is set
+     * once at startup and is kept if already given with <code>-Dhttp.maxConnections</code>.
+     */
+    public static void setKeepAliveConnections(int maxPerRoute) {
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(maxPerRoute));
+        }
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+        return new PooledRequest(delegate.createRequest(uri, httpMethod));
+    }
+
+    /**
+     * Opens connections to the API up front, so the first entities do not pay for the TCP and TLS handshakes. The
+     * requests bypass the rest template, so they are sent with the given authorization headers, otherwise an API that
+     * requires authentication would only answer them with errors.
+     */
+    public void warmUp(String urlBase, int connections, HttpHeaders authorization) {
+        List<ClientHttpResponse> responses = new ArrayList<>();
+        try {
+            // hold every response open until all are done, otherwise the same connection is reused each time
+            for (int i = 0; i < Math.min(connections, maxPerRoute); i++) {
+                ClientHttpRequest request = createRequest(URI.create(urlBase + "/v1/subjects"), HttpMethod.GET);
+                request.getHeaders().putAll(authorization);
+                ClientHttpResponse response = request.execute();
+                responses.add(response);
+                if (response.getRawStatusCode() >= 400) {
+                    log.warn("Could not warm up connections to {}: {} {}", urlBase, response.getRawStatusCode(), response.getStatusText());
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not warm up connections to {}: {}", urlBase, e.getMessage());
+        } finally {
+            responses.forEach(ClientHttpResponse::close);
+        }
+    }
+
+    public String getStatistics() {
+        return "HTTP: " + requests.get() + " requests, at most " + peakLeased.get() + " connections in use, "
+                + waits.get() + " waited for a connection (" + waitNanos.get() / 1_000_000 + " ms in total), "
+                + gzippedResponses.get() + " gzipped responses";
+    }
+
+    private Lease lease(URI uri) throws IOException {
+        Semaphore route = routes.computeIfAbsent(uri.getScheme() + "://" + uri.getAuthority(), key -> new Semaphore(maxPerRoute, true));
+        requests.incrementAndGet();
+        long start = System.nanoTime();
+        boolean waited = false;
+        try {
+            if (!total.tryAcquire()) {
+                waited = true;
+                total.acquire();
+            }
+            try {
+                if (!route.tryAcquire()) {
+                    waited = true;
+                    route.acquire();
+                }
+            } catch (InterruptedException e) {
+                total.release();
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + uri.getAuthority());
+        }
+        if (waited) {
+            waits.incrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+        peakLeased.accumulateAndGet(leased.incrementAndGet(), Math::max);
+        return new Lease(route);
+    }
+
+    private class Lease {
+        private final Semaphore route;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(Semaphore route) {
+            this.route = route;
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                leased.decrementAndGet();
+                route.release();
+                total.release();
+            }
+        }
+    }
+
+    private class PooledRequest implements ClientHttpRequest {
+        private final ClientHttpRequest request;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+
+        private PooledRequest(ClientHttpRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public HttpMethod getMethod() {
+            return request.getMethod();
+        }
+
+        @Override
+        public URI getURI() {
+            return request.getURI();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return request.getHeaders();
+        }
+
+        @Override
+        public OutputStream getBody() throws IOException {
+            return body;
+        }
+
+        @Override
+        public ClientHttpResponse execute() throws IOException {
+            request.getHeaders().set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+            if (body.size() > 0) {
+                if (gzipRequests) {
+                    request.getHeaders().set(HttpHeaders.CONTENT_ENCODING, "gzip");
+                    try (GZIPOutputStream gzip = new GZIPOutputStream(request.getBody())) {
+                        body.writeTo(gzip);
+                    }
+                } else {
+                    body.writeTo(request.getBody());
+                }
+            }
+
+            Lease lease = lease(getURI());
+            try {
+                return new PooledResponse(request.execute(), lease);
+            } catch (IOException | RuntimeException e) {
+                lease.release();
+                throw e;
+            }
+        }
+    }
+
+    private class PooledResponse implements ClientHttpResponse {
+        private final ClientHttpResponse response;
+        private final Lease lease;
+        private InputStream body;
+
+        private PooledResponse(ClientHttpResponse response, Lease lease) {
+            this.response = response;
+            this.lease = lease;
+        }
+
+        @Override
+        public HttpStatus getStatusCode() throws IOException {
+            return response.getStatusCode();
+        }
+
+        @Override
+        public int getRawStatusCode() throws IOException {
+            return response.getRawStatusCode();
+        }
+
+        @Override
+        public String getStatusText() throws IOException {
+            return response.getStatusText();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return response.getHeaders();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                body = response.getBody();
+                if ("gzip".equalsIgnoreCase(getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING))) {
+                    gzippedResponses.incrementAndGet();
+                    body = gunzip(body);
+                }
+            }
+            return body;
+        }
+
+        @Override
+        public void close() {
+            try {
+                // the connection is only returned to the keep-alive cache once its body has been read to the end
+                response.getBody();
+            } catch (IOException e) {
+                // no body, nothing to drain
+            } finally {
+                response.close();
+                lease.release();
+            }
+        }
+    }
+
+    private static InputStream gunzip(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 1);
+        int first = pushback.read();
+        if (first == -1) return pushback;
+        pushback.unread(first);
+        return new GZIPInputStream(pushback);
+    }
+}
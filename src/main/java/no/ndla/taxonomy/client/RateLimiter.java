@@ -0,0 +1,50 @@
+package no.ndla.taxonomy.client;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that lets through a given number of requests per second on average, and bursts of up to a given size.
+ * <p>
+ * A caller that finds the bucket empty reserves the next token and sleeps until it is due, so callers are let through
+ * in the order they arrive and the rate holds across threads.
+ */
+public class RateLimiter {
+    private final double nanosPerPermit;
+    private final double burst;
+    private double tokens;
+    private long updated = System.nanoTime();
+
+    /**
+     * @param permitsPerSecond the sustained rate
+     * @param burst the number of requests that may be made at once after a quiet period
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) throw new IllegalArgumentException("Rate must be positive, was " + permitsPerSecond);
+        this.nanosPerPermit = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    public void acquire() throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - updated) / nanosPerPermit);
+            updated = now;
+            tokens -= 1;
+            wait = tokens >= 0 ? 0 : (long) (-tokens * nanosPerPermit);
+        }
+        if (wait == 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+        }
+    }
+
+    public double getPermitsPerSecond() {
+        return TimeUnit.SECONDS.toNanos(1) / nanosPerPermit;
+    }
+}
@@ -0,0 +1,159 @@
+package no.ndla.taxonomy.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.http.*;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The answers of the API to the <code>GET</code> calls of an import, kept in a file, so an import can be planned
+ * again without the API.
+ * <p>
+ * When recording, the successful and <code>404</code> answers pass through and are kept by method and path.
+ * When replaying, every <code>GET</code> is answered from the snapshot, and a call that is not in it as
+ * <code>404 Not Found</code>: an entity the recorded run did not look up did not exist as far as it knew.
+ * Other methods are refused, since nothing can be written to a snapshot. Must come before
+ * {@link RetryInterceptor}, so a replayed call is never retried.
+ */
+public class ResponseSnapshot implements ClientHttpRequestInterceptor {
+    private static final ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private final boolean replay;
+    private final Map<String, Recorded> responses;
+
+    private static class Recorded {
+        final int status;
+        final byte[] body;
+
+        Recorded(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private ResponseSnapshot(boolean replay, Map<String, Recorded> responses) {
+        this.replay = replay;
+        this.responses = responses;
+    }
+
+    public static ResponseSnapshot record() {
+        return new ResponseSnapshot(false, new ConcurrentSkipListMap<>());
+    }
+
+    public static ResponseSnapshot replay(File file) throws IOException {
+        Map<String, Recorded> responses = new ConcurrentHashMap<>();
+        JsonNode snapshot = objectMapper.readTree(file);
+        Iterator<Map.Entry<String, JsonNode>> fields = snapshot.get("responses").fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode body = field.getValue().get("body");
+            responses.put(field.getKey(), new Recorded(field.getValue().get("status").asInt(),
+                    body == null || body.isNull() ? new byte[0] : objectMapper.writeValueAsBytes(body)));
+        }
+        return new ResponseSnapshot(true, responses);
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        if (request.getMethod() != HttpMethod.GET) {
+            if (replay) throw new IllegalStateException("Cannot " + request.getMethod() + " " + request.getURI() + " when replaying a snapshot");
+            return execution.execute(request, body);
+        }
+
+        String key = getKey(request.getURI());
+        if (replay) {
+            Recorded recorded = responses.get(key);
+            return recorded != null ? new SnapshotResponse(recorded.status, recorded.body) : new SnapshotResponse(404, new byte[0]);
+        }
+
+        ClientHttpResponse response = execution.execute(request, body);
+        int status = response.getRawStatusCode();
+        if (status != 200 && status != 404) return response;
+        try {
+            byte[] content = StreamUtils.copyToByteArray(response.getBody());
+            responses.put(key, new Recorded(status, content));
+            return new SnapshotResponse(status, content);
+        } finally {
+            response.close();
+        }
+    }
+
+    private static String getKey(URI uri) {
+        return "GET " + uri.getRawPath() + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+    }
+
+    public int size() {
+        return responses.size();
+    }
+
+    public void write(File file) throws IOException {
+        ObjectNode snapshot = objectMapper.createObjectNode();
+        ObjectNode recorded = snapshot.putObject("responses");
+        for (Map.Entry<String, Recorded> response : responses.entrySet()) {
+            ObjectNode entry = recorded.putObject(response.getKey());
+            entry.put("status", response.getValue().status);
+            byte[] body = response.getValue().body;
+            if (response.getValue().status == 200 && body.length > 0) {
+                entry.set("body", objectMapper.readTree(body));
+            }
+        }
+        objectMapper.writeValue(file, snapshot);
+    }
+
+    private static class SnapshotResponse implements ClientHttpResponse {
+        private final int status;
+        private final byte[] body;
+        private final HttpHeaders headers = new HttpHeaders();
+
+        private SnapshotResponse(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+            headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+            headers.setContentLength(body.length);
+        }
+
+        @Override
+        public HttpStatus getStatusCode() {
+            return HttpStatus.valueOf(status);
+        }
+
+        @Override
+        public int getRawStatusCode() {
+            return status;
+        }
+
+        @Override
+        public String getStatusText() {
+            return getStatusCode().getReasonPhrase();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
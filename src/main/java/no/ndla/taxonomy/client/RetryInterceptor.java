@@ -0,0 +1,238 @@
+package no.ndla.taxonomy.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.*;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retries calls to the API that fail for reasons that may pass, with exponential backoff and full jitter, and
+ * makes each attempt wait for the {@link RateLimiter} and the {@link AdaptiveConcurrencyLimiter}, if there are any.
+ * The concurrency limiter is told the latency of each attempt and whether the API was overloaded.
+ * <p>
+ * A call is retried if the connection fails or times out, or the API answers 429, 500, 502, 503 or 504. <code>GET</code>,
+ * <code>PUT</code> and <code>DELETE</code> can always be retried. A <code>POST</code> that may have been carried
+ * out is only retried if it creates an entity with a URN chosen by the client, and a <code>409 Conflict</code>
+ * on the retry means the first attempt created it. Other <code>POST</code>s, e.g. connections, are only retried
+ * when the API cannot have seen them: the connection was refused or the API answered 429 or 503.
+ * <p>
+ * Must be the last interceptor, since every attempt runs the interceptors after it again. {@link CallMetrics}
+ * therefore counts a retried call once, with the latency of all its attempts.
+ */
+public class RetryInterceptor implements ClientHttpRequestInterceptor {
+    private static final Logger log = LoggerFactory.getLogger("http");
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    public static final int DEFAULT_MAX_RETRIES = 4;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 200;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 10_000;
+
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+    private volatile long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private volatile RateLimiter rateLimiter;
+    private volatile AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong recoveredCreates = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    /**
+     * @param maxRetries retries after the first attempt, 0 to not retry
+     * @param baseDelayMillis the longest wait before the first retry, doubled for each retry after it up to maxDelayMillis
+     */
+    public void setBackoff(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param rateLimiter limits the attempts, or null for no limit
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @param concurrencyLimiter limits the attempts in flight at once, or null for no limit
+     */
+    public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        boolean post = request.getMethod() == HttpMethod.POST || request.getMethod() == HttpMethod.PATCH;
+        URI createdId = post ? getClientChosenId(request, body) : null;
+        boolean mayHaveCreated = false;
+
+        for (int attempt = 0; ; attempt++) {
+            RateLimiter limiter = rateLimiter;
+            if (limiter != null) limiter.acquire();
+
+            ClientHttpResponse response;
+            try {
+                response = execute(request, body, execution);
+            } catch (IOException e) {
+                boolean notSent = e instanceof ConnectException;
+                if (isInterrupted(e) || !canRetry(attempt, post && !notSent, createdId)) {
+                    if (attempt > 0) exhausted.incrementAndGet();
+                    throw e;
+                }
+                mayHaveCreated |= !notSent;
+                backoff(request, attempt, e.toString(), -1);
+                continue;
+            }
+
+            int status = response.getRawStatusCode();
+            if (status == 409 && mayHaveCreated && createdId != null) {
+                response.close();
+                recoveredCreates.incrementAndGet();
+                log.info("{} {} was created by an earlier attempt", request.getMethod(), createdId);
+                return new CreatedResponse(URI.create(request.getURI().getRawPath() + "/" + createdId));
+            }
+            if (!isTransient(status)) return response;
+
+            boolean notSeen = status == 429 || status == 503;
+            if (!canRetry(attempt, post && !notSeen, createdId)) {
+                if (attempt > 0) exhausted.incrementAndGet();
+                return response;
+            }
+            mayHaveCreated |= !notSeen;
+            long retryAfter = getRetryAfterMillis(response);
+            response.close();
+            backoff(request, attempt, String.valueOf(status), retryAfter);
+        }
+    }
+
+    private ClientHttpResponse execute(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        AdaptiveConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter == null) return execution.execute(request, body);
+
+        limiter.acquire();
+        long start = System.nanoTime();
+        boolean overloaded = true;
+        try {
+            ClientHttpResponse response = execution.execute(request, body);
+            overloaded = isTransient(response.getRawStatusCode());
+            return response;
+        } finally {
+            limiter.release(System.nanoTime() - start, overloaded);
+        }
+    }
+
+    /**
+     * @return true if the thread was interrupted, as opposed to a connect or read timeout, which is also an {@link InterruptedIOException}
+     */
+    private static boolean isInterrupted(IOException e) {
+        return Thread.currentThread().isInterrupted() || e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException);
+    }
+
+    private boolean canRetry(int attempt, boolean ambiguousPost, URI createdId) {
+        return attempt < maxRetries && (!ambiguousPost || createdId != null);
+    }
+
+    private static boolean isTransient(int status) {
+        return status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    private void backoff(HttpRequest request, int attempt, String reason, long retryAfter) throws InterruptedIOException {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 20));
+        long delay = retryAfter >= 0 ? Math.min(retryAfter, maxDelayMillis) : ThreadLocalRandom.current().nextLong(ceiling + 1);
+        retries.incrementAndGet();
+        log.warn("{} {} failed with {}, retrying in {} ms ({} of {})", request.getMethod(), request.getURI().getRawPath(), reason, delay, attempt + 1, maxRetries);
+        try {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    private static long getRetryAfterMillis(ClientHttpResponse response) {
+        String retryAfter = response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER);
+        if (retryAfter == null) return -1;
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the <code>id</code> of the JSON body, which the API uses as the URN of the entity it creates, or null
+     */
+    private static URI getClientChosenId(HttpRequest request, byte[] body) {
+        MediaType contentType = request.getHeaders().getContentType();
+        if (body.length == 0 || contentType == null || !MediaType.APPLICATION_JSON.isCompatibleWith(contentType)) return null;
+        try {
+            JsonNode id = objectMapper.readTree(body).get("id");
+            return id != null && id.isTextual() ? URI.create(id.asText()) : null;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public String getStatistics() {
+        return "Retries: " + retries.get() + " retried attempts, " + recoveredCreates.get() + " creates confirmed by a conflict, "
+                + exhausted.get() + " calls failed after retrying";
+    }
+
+    private static class CreatedResponse implements ClientHttpResponse {
+        private final HttpHeaders headers = new HttpHeaders();
+
+        private CreatedResponse(URI location) {
+            headers.setLocation(location);
+            headers.setContentLength(0);
+        }
+
+        @Override
+        public HttpStatus getStatusCode() {
+            return HttpStatus.CREATED;
+        }
+
+        @Override
+        public int getRawStatusCode() {
+            return HttpStatus.CREATED.value();
+        }
+
+        @Override
+        public String getStatusText() {
+            return HttpStatus.CREATED.getReasonPhrase();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -31,27 +31,43 @@ import no.ndla.taxonomy.client.topicSubtopics.UpdateTopicSubtopicCommand;
 import no.ndla.taxonomy.client.topics.CreateTopicCommand;
 import no.ndla.taxonomy.client.topics.SubtopicIndexDocument;
 import no.ndla.taxonomy.client.topics.TopicIndexDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequest;
 import org.springframework.http.client.ClientHttpRequestExecution;
 import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpMessageConverterExtractor;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.IOException;
 import java.net.URI;
 import java.time.Instant;
 import java.util.*;
 
 public class TaxonomyRestClient {
+    private static final Logger log = LoggerFactory.getLogger("http");
+
     private RestTemplate restTemplate;
     private String urlBase;
-    public Authentication authentication;
-    public Long last_token_update;
+    public volatile Authentication authentication;
+    public volatile Long last_token_update;
     private String clientId;
     private String clientSecret;
     private String token_server;
+    private final CallMetrics metrics = new CallMetrics();
+    private final RetryInterceptor retries = new RetryInterceptor();
+    private volatile boolean readOnly;
+    private volatile ResponseSnapshot snapshot;
 
     public TaxonomyRestClient(String urlBase, String clientId, String clientSecret, String token_server, RestTemplate restTemplate) {
         this.urlBase = urlBase;
@@ -60,21 +76,54 @@ public class TaxonomyRestClient {
         this.clientSecret = clientSecret;
         this.token_server = token_server;
         List<ClientHttpRequestInterceptor> interceptors = new ArrayList<>();
+        interceptors.add((HttpRequest request, byte[] body, ClientHttpRequestExecution execution) -> {
+            if (readOnly && request.getMethod() != HttpMethod.GET) {
+                throw new IllegalStateException("Refusing to " + request.getMethod() + " " + request.getURI() + " in read only mode");
+            }
+            return execution.execute(request, body);
+        });
         interceptors.add(new HeaderRequestInterceptor("batch", "1"));
-        if(!this.clientId.equals("ITEST")) {
+        if (this.clientId != null && !this.clientId.equals("ITEST")) {
             interceptors.add((HttpRequest request, byte[] body, ClientHttpRequestExecution execution) -> {
-                if(TokenUpdateCheck.shouldUpdateToken(last_token_update, authentication)) {
-                    getAccessToken(this.clientId, this.clientSecret, this.token_server);
-                }
-                if (authentication != null) {
-                    request.getHeaders().add("Authorization", "Bearer " + authentication.access_token);
-                }
+                request.getHeaders().putAll(getAuthorizationHeaders());
                 return execution.execute(request, body);
             });
         }
+        interceptors.add(metrics);
+        interceptors.add((HttpRequest request, byte[] body, ClientHttpRequestExecution execution) -> {
+            ResponseSnapshot current = snapshot;
+            return current != null ? current.intercept(request, body, execution) : execution.execute(request, body);
+        });
+        interceptors.add(retries);
         restTemplate.setInterceptors(interceptors);
     }
 
+    public String getUrlBase() {
+        return urlBase;
+    }
+
+    public CallMetrics getMetrics() {
+        return metrics;
+    }
+
+    public RetryInterceptor getRetries() {
+        return retries;
+    }
+
+    /**
+     * @param readOnly refuse every call but <code>GET</code>, e.g. for a dry run
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * @param snapshot records the answers to <code>GET</code> calls, or answers them instead of the API, or null for neither
+     */
+    public void setSnapshot(ResponseSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
     private static final Map<String, String> controllerNames = new HashMap<String, String>() {
         {
             put(Importer.SUBJECT_TYPE, "/v1/subjects");
@@ -83,6 +132,30 @@ public class TaxonomyRestClient {
         }
     };
 
+    /**
+     * @return the headers that authorize a request to the API, refreshing the access token when needed. There are
+     * none for the ITEST client.
+     */
+    public HttpHeaders getAuthorizationHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        if (clientId == null || clientId.equals("ITEST")) return headers;
+        if (TokenUpdateCheck.shouldUpdateToken(last_token_update, authentication)) {
+            updateAccessToken();
+        }
+        Authentication current = authentication;
+        if (current != null) {
+            headers.add("Authorization", "Bearer " + current.access_token);
+        }
+        return headers;
+    }
+
+    private synchronized void updateAccessToken() {
+        // another thread may have refreshed the token while this one waited for the lock
+        if (TokenUpdateCheck.shouldUpdateToken(last_token_update, authentication)) {
+            getAccessToken(this.clientId, this.clientSecret, this.token_server);
+        }
+    }
+
     private void getAccessToken(String clientId, String clientSecret, String token_server){
         CreateAuthCommand cmd = new CreateAuthCommand();
         cmd.grant_type = "client_credentials";
@@ -101,7 +174,7 @@ public class TaxonomyRestClient {
             authentication = response.getBody();
             last_token_update = Instant.now().toEpochMilli();
         }catch (IllegalStateException | HttpClientErrorException e){
-            System.out.println("401 Wrong Credentials? You are using the environment: " + token_server);
+            log.error("401 Wrong Credentials? You are using the environment: {}", token_server);
         }
     }
 
@@ -110,6 +183,49 @@ public class TaxonomyRestClient {
         return restTemplate.getForObject(url, SubjectIndexDocument.class);
     }
 
+    /**
+     * Reads a subject, returning null if it does not exist.
+     */
+    public SubjectIndexDocument findSubject(URI id) {
+        return find("/v1/subjects/" + id, SubjectIndexDocument.class);
+    }
+
+    /**
+     * Reads a topic, returning null if it does not exist.
+     */
+    public TopicIndexDocument findTopic(URI id) {
+        return find("/v1/topics/" + id, TopicIndexDocument.class);
+    }
+
+    /**
+     * Reads a resource, returning null if it does not exist.
+     */
+    public ResourceIndexDocument findResource(URI id) {
+        return find("/v1/resources/" + id, ResourceIndexDocument.class);
+    }
+
+    /**
+     * Reads a document like <code>getForObject</code>, but answers a 404 with null rather than an exception,
+     * since a missing entity is the normal case for an import. The request goes through the interceptors of the
+     * RestTemplate, and other errors through its error handler, as usual.
+     */
+    private <T> T find(String path, Class<T> type) {
+        URI url = restTemplate.getUriTemplateHandler().expand(urlBase + path);
+        try {
+            ClientHttpRequest request = restTemplate.getRequestFactory().createRequest(url, HttpMethod.GET);
+            request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+            try (ClientHttpResponse response = request.execute()) {
+                if (response.getRawStatusCode() == HttpStatus.NOT_FOUND.value()) return null;
+                if (restTemplate.getErrorHandler().hasError(response)) {
+                    restTemplate.getErrorHandler().handleError(response);
+                }
+                return new HttpMessageConverterExtractor<>(type, restTemplate.getMessageConverters()).extractData(response);
+            }
+        } catch (IOException e) {
+            throw new ResourceAccessException("I/O error on GET request for \"" + url + "\": " + e.getMessage(), e);
+        }
+    }
+
     public URI updateEntity(URI id, String name, URI contentUri, String entityType) {
         URI location = getLocation(id, entityType);
         UpdateSubjectCommand cmd = new UpdateSubjectCommand();
@@ -119,7 +235,7 @@ public class TaxonomyRestClient {
         return location;
     }
 
-    private URI getLocation(URI id, String entityType) {
+    public URI getLocation(URI id, String entityType) {
         return URI.create(controllerNames.get(entityType) + "/" + id);
     }
 
@@ -131,7 +247,7 @@ public class TaxonomyRestClient {
 
         URI location = restTemplate.postForLocation(urlBase + "/v1/subjects", cmd);
         URI subjectid = getId(location);
-        System.out.println("created: " + subjectid);
+        log.info("created: {}", subjectid);
         return location;
     }
 
@@ -147,6 +263,11 @@ public class TaxonomyRestClient {
         restTemplate.put(urlBase + location + "/translations/" + language, cmd);
     }
 
+    public TranslationIndexDocument[] getTranslations(URI location) {
+        String url = urlBase + location + "/translations";
+        return restTemplate.getForObject(url, TranslationIndexDocument[].class);
+    }
+
     public URI createTopic(URI id, String name, URI contentUri) {
         CreateTopicCommand cmd = new CreateTopicCommand();
         cmd.name = name;
@@ -323,6 +444,16 @@ public class TaxonomyRestClient {
         restTemplate.put(url, command);
     }
 
+    public void updateTopicResource(URI connectionId, int rank, boolean primary) {
+        UpdateTopicResourceCommand command = new UpdateTopicResourceCommand();
+        command.id = connectionId;
+        command.primary = primary;
+        command.rank = rank;
+
+        String url = urlBase + "/v1/topic-resources/" + connectionId;
+        restTemplate.put(url, command);
+    }
+
     public no.ndla.taxonomy.client.topics.ResourceIndexDocument[] getResourcesForTopic(URI topicId) {
         String url = urlBase + "/v1/topics/" + topicId + "/resources";
         return restTemplate.getForObject(url, no.ndla.taxonomy.client.topics.ResourceIndexDocument[].class);
@@ -343,6 +474,11 @@ public class TaxonomyRestClient {
         return restTemplate.getForObject(url, TopicSubtopicIndexDocument.class);
     }
 
+    public TopicSubtopicIndexDocument[] getTopicSubtopics() {
+        String url = urlBase + "/v1/topic-subtopics";
+        return restTemplate.getForObject(url, TopicSubtopicIndexDocument[].class);
+    }
+
     public SubtopicIndexDocument[] getSubtopicsForTopic(URI id) {
         String url = urlBase + "/v1/topics/" + id + "/topics";
         return restTemplate.getForObject(url, SubtopicIndexDocument[].class);
@@ -358,6 +494,21 @@ public class TaxonomyRestClient {
         restTemplate.put(url, command);
     }
 
+    public void updateTopicSubtopic(URI connectionId, int rank, boolean primary) {
+        UpdateTopicSubtopicCommand command = new UpdateTopicSubtopicCommand();
+        command.id = connectionId;
+        command.primary = primary;
+        command.rank = rank;
+
+        String url = urlBase + "/v1/topic-subtopics/" + connectionId;
+        restTemplate.put(url, command);
+    }
+
+    public SubjectTopicIndexDocument[] getSubjectTopics() {
+        String url = urlBase + "/v1/subject-topics";
+        return restTemplate.getForObject(url, SubjectTopicIndexDocument[].class);
+    }
+
     public SubjectTopicIndexDocument getSubjectTopic(URI id) {
         String url = urlBase + "/v1/subject-topics/" + id;
         return restTemplate.getForObject(url, SubjectTopicIndexDocument.class);
@@ -373,10 +524,20 @@ public class TaxonomyRestClient {
         restTemplate.put(url, command);
     }
 
+    public void updateSubjectTopic(URI connectionId, int rank, boolean primary) {
+        UpdateSubjectTopicCommand command = new UpdateSubjectTopicCommand();
+        command.id = connectionId;
+        command.primary = primary;
+        command.rank = rank;
+
+        String url = urlBase + "/v1/subject-topics/" + connectionId;
+        restTemplate.put(url, command);
+    }
+
     public void setNoBatchMode() {
         List<ClientHttpRequestInterceptor> interceptors = restTemplate.getInterceptors();
         interceptors.add(new HeaderRequestInterceptor("batch", "0"));
-        System.out.println("Unsetting batch mode");
+        log.info("Unsetting batch mode");
         restTemplate.setInterceptors(interceptors);
     }
 
@@ -0,0 +1,11 @@
+package no.ndla.taxonomy.client;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class TranslationIndexDocument {
+    @JsonProperty
+    public String name;
+
+    @JsonProperty
+    public String language;
+}
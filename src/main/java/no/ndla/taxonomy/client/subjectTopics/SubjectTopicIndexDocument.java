@@ -20,7 +20,7 @@ public class SubjectTopicIndexDocument {
     @JsonProperty
     public int rank;
 
-    SubjectTopicIndexDocument() {
+    public SubjectTopicIndexDocument() {
     }
 
 }
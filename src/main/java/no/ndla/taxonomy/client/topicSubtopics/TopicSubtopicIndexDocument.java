@@ -20,7 +20,7 @@ public class TopicSubtopicIndexDocument {
     @JsonProperty
     public int rank;
 
-    TopicSubtopicIndexDocument() {
+    public TopicSubtopicIndexDocument() {
     }
 
 }
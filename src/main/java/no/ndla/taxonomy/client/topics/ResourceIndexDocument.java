@@ -30,4 +30,7 @@ public class ResourceIndexDocument {
 
     @JsonProperty
     public Boolean isPrimary;
+
+    @JsonProperty
+    public Integer rank;
 }
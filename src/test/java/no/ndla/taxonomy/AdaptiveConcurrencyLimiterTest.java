@@ -0,0 +1,61 @@
+package no.ndla.taxonomy;
+
+import no.ndla.taxonomy.client.AdaptiveConcurrencyLimiter;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    @Test
+    public void limit_grows_while_latency_is_flat() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 4);
+
+        for (int i = 0; i < 40; i++) {
+            // as many calls as the limit allows, so each window uses it up
+            int calls = limiter.getLimit();
+            for (int call = 0; call < calls; call++) {
+                limiter.acquire();
+            }
+            for (int call = 0; call < calls; call++) {
+                limiter.release(millis(10), false);
+            }
+        }
+
+        assertEquals(4, limiter.getLimit());
+        assertTrue(limiter.getStatistics(), limiter.getStatistics().contains("2 changes for limit reached with steady latency"));
+    }
+
+    @Test
+    public void limit_is_cut_when_the_api_fails() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 1, 8);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+            limiter.release(millis(10), i == 5);
+        }
+
+        assertEquals(6, limiter.getLimit());
+        assertTrue(limiter.getStatistics(), limiter.getStatistics().contains("8 -> 6: errors from the API"));
+    }
+
+    @Test
+    public void limit_is_cut_when_latency_rises() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 1, 8);
+
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire();
+            limiter.release(millis(i < 10 ? 10 : 50), false);
+        }
+
+        assertEquals(7, limiter.getLimit());
+        assertTrue(limiter.getStatistics(), limiter.getStatistics().contains("8 -> 7: latency 50 ms over twice the unloaded 10 ms"));
+    }
+
+    private long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
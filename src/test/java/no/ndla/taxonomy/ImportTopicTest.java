@@ -3,7 +3,6 @@ package no.ndla.taxonomy;
 import no.ndla.taxonomy.client.TaxonomyRestClient;
 import no.ndla.taxonomy.client.topicSubtopics.TopicSubtopicIndexDocument;
 import no.ndla.taxonomy.client.topics.TopicIndexDocument;
-import org.junit.Ignore;
 import org.junit.Test;
 import org.springframework.web.client.RestTemplate;
 
@@ -157,8 +156,6 @@ public class ImportTopicTest {
     }
 
     @Test
-    @Ignore
-    //This test started failing after API stopped allowing two primary parents. However, to get it to work again, Importer.importTopicSubtopic must be fixed.
     public void can_set_primary_explicitely() {
         Entity subject = new Entity.Builder()
                 .type("Subject")
@@ -0,0 +1,584 @@
+package no.ndla.taxonomy;
+
+import no.ndla.taxonomy.client.CallMetrics;
+import no.ndla.taxonomy.client.RateLimiter;
+import no.ndla.taxonomy.client.ResponseSnapshot;
+import no.ndla.taxonomy.client.TaxonomyRestClient;
+import no.ndla.taxonomy.client.subjectTopics.SubjectTopicIndexDocument;
+import no.ndla.taxonomy.client.subjects.TopicIndexDocument;
+import no.ndla.taxonomy.client.topicResources.TopicResourceIndexDocument;
+import no.ndla.taxonomy.client.topicSubtopics.TopicSubtopicIndexDocument;
+import no.ndla.taxonomy.client.topics.ResourceIndexDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static no.ndla.taxonomy.TestUtils.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InMemoryImportTest {
+    InMemoryTaxonomyApi api;
+    RestTemplate restTemplate = new RestTemplate();
+    Entity subject;
+
+    String[] lines = new String[]{
+            "Klar for import\tHovedemne\tEmneområde\tEmne\tTittelen på ressursen\tOversettelse (ikke påkrevd)\t\t\t\tFilter 1",
+            "Import\tEmne nivå 1\tEmne nivå 2\tEmne nivå 3\tLæringsressurs\tnn\tLenke til gammelt system\tRessurstype\tSubressurstype\tFilter\tRelevans",
+            "x\tTall og algebra\t\t\t\tTal og algebra\thttp://red.ndla.no/nb/node/165193?fag=161000\t\t\tVG1\tKjernestoff",
+            "x\t\tLikninger\t\t\t\thttp://red.ndla.no/nb/node/165194?fag=161000\t\t\tVG1\tKjernestoff",
+            "x\t\t\t\tAndregradslikninger\t\thttp://red.ndla.no/nb/node/165195?fag=161000\tFagstoff\tFagartikkel\tVG1\tTilleggsstoff",
+            "x\t\t\t\tFørstegradslikninger\t\thttp://red.ndla.no/nb/node/165196?fag=161000\tOppgaver og aktiviteter\tOppgave\t\t"
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        api = new InMemoryTaxonomyApi(0).start();
+        subject = new Entity.Builder()
+                .type("Subject")
+                .name("Matematikk")
+                .id(URI.create("urn:subject:1"))
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+    }
+
+    private Importer importSheet() {
+        return importSheet(new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate));
+    }
+
+    private Importer importSheet(TaxonomyRestClient restClient) {
+        return importSheet(restClient, null);
+    }
+
+    private Importer importSheet(TaxonomyRestClient restClient, ImportJournal journal) {
+        Importer importer = new Importer(restClient);
+        importer.setJournal(journal);
+        return importSheet(importer);
+    }
+
+    private Importer importSheet(Importer importer) {
+        importer.restoreMirror(subject.getId());
+        importer.doImport(subject);
+        List<Entity> parsed = parse();
+        List<Entity> entities = importer.skipCompleted(parsed);
+        try {
+            entities = importer.skipUnchanged(subject.getId(), parsed, entities);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        importer.classify(entities);
+        importer.provision(entities);
+        for (Entity entity : entities) {
+            importer.doImport(entity);
+        }
+        importer.saveMirror(subject.getId());
+        try {
+            importer.saveSubtreeHashes(subject.getId());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return importer;
+    }
+
+    private List<Entity> parse() {
+        List<Entity> parsed = new ArrayList<>();
+        TsvParser parser = new TsvParser(lines, subject);
+        while (parser.hasNext()) {
+            Entity entity = parser.next();
+            if (entity != null) parsed.add(entity);
+        }
+        return parsed;
+    }
+
+    @Test
+    public void can_import_sheet_without_taxonomy_api() {
+        importSheet();
+
+        TopicIndexDocument[] topics = restTemplate.getForObject(api.getUrl() + "/v1/subjects/urn:subject:1/topics?recursive=true", TopicIndexDocument[].class);
+        assertEquals(2, topics.length);
+        assertAnyTrue(topics, topic -> topic.name.equals("Likninger") && topic.parent.toString().equals("urn:topic:1:165193"));
+
+        ResourceIndexDocument[] resources = restTemplate.getForObject(api.getUrl() + "/v1/topics/urn:topic:1:165194/resources", ResourceIndexDocument[].class);
+        assertEquals(2, resources.length);
+        assertEquals("Andregradslikninger", resources[0].name);
+        assertEquals("Førstegradslikninger", resources[1].name);
+    }
+
+    @Test
+    public void topic_without_urn_or_node_id_is_connected_once_created() {
+        Importer importer = new Importer(new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate));
+        importer.doImport(subject);
+
+        importer.doImport(new Entity.Builder().type("Topic").name("Geometri").parent(subject).build());
+
+        assertEquals(0, importer.getFailedCount());
+        TopicIndexDocument[] topics = restTemplate.getForObject(api.getUrl() + "/v1/subjects/urn:subject:1/topics", TopicIndexDocument[].class);
+        assertEquals(1, topics.length);
+        assertEquals("Geometri", topics[0].name);
+    }
+
+    @Test
+    public void reimporting_unchanged_sheet_writes_nothing() {
+        importSheet();
+        Importer importer = importSheet();
+
+        assertTrue(importer.getSummary(), importer.getSummary().endsWith("0 creates, 0 updates, 0 deletes"));
+    }
+
+    @Test
+    public void subject_without_a_name_keeps_its_name() {
+        importSheet();
+        subject = new Entity.Builder().type("Subject").id(URI.create("urn:subject:1")).build();
+
+        Importer importer = importSheet();
+
+        assertTrue(importer.getSummary(), importer.getSummary().endsWith("0 creates, 0 updates, 0 deletes"));
+        assertEquals("Matematikk", new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate).getSubject(subject.getId()).name);
+    }
+
+    @Test
+    public void new_entities_are_classified_without_failed_lookups() {
+        lines[2] = lines[2].replace("165193", "165293");
+        lines[3] = lines[3].replace("165194", "165294");
+        lines[4] = lines[4].replace("165195", "165295");
+        lines[5] = lines[5].replace("165196", "165296");
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+
+        importSheet(restClient);
+
+        assertEquals(0, getErrors(restClient));
+        // one lookup for each new topic and resource, and none when they are planned
+        assertEquals(2, getCalls(restClient, "GET /v1/topics/{id}"));
+        assertEquals(2, getCalls(restClient, "GET /v1/resources/{id}"));
+    }
+
+    @Test
+    public void resource_on_several_rows_is_synced_once() {
+        lines = new String[]{
+                lines[0],
+                lines[1] + "\tSekundærtilknytning",
+                "x\tBrøk\t\t\t\t\thttp://red.ndla.no/nb/node/165401?fag=161000\t\t\tVG1\tKjernestoff\t",
+                "x\t\t\t\tBrøkregning\tBrøkrekning\thttp://red.ndla.no/nb/node/165403?fag=161000\tFagstoff\tFagartikkel\tVG1\tKjernestoff\t",
+                "x\tProsent\t\t\t\t\thttp://red.ndla.no/nb/node/165402?fag=161000\t\t\tVG1\tKjernestoff\t",
+                "x\t\t\t\tBrøkregning\tBrøkrekning\thttp://red.ndla.no/nb/node/165403?fag=161000\tFagstoff\tFagartikkel\tVG1\tKjernestoff\tx"
+        };
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+
+        importSheet(restClient);
+
+        assertEquals(0, getCalls(restClient, "GET /v1/resources/{id}/resource-types"));
+        assertEquals(0, getCalls(restClient, "GET /v1/resources/{id}/filters"));
+        assertEquals(1, getCalls(restClient, "PUT /v1/resources/{id}/translations/{language}"));
+        assertEquals(2, getCalls(restClient, "POST /v1/topic-resources"));
+        ResourceIndexDocument[] resources = restTemplate.getForObject(api.getUrl() + "/v1/topics/urn:topic:1:165402/resources", ResourceIndexDocument[].class);
+        assertEquals(1, resources.length);
+        assertEquals("Brøkregning", resources[0].name);
+    }
+
+    @Test
+    public void concurrent_import_connects_every_entity_under_its_parent() {
+        lines = new String[]{
+                lines[0],
+                lines[1] + "\tSekundærtilknytning",
+                "x\tBrøk\t\t\t\t\thttp://red.ndla.no/nb/node/165401?fag=161000\t\t\tVG1\tKjernestoff\t",
+                "x\t\t\t\tFellesnevner\t\thttp://red.ndla.no/nb/node/165403?fag=161000\tFagstoff\tFagartikkel\tVG1\tKjernestoff\t",
+                "x\t\t\t\tForkorting\t\thttp://red.ndla.no/nb/node/165421?fag=161000\tFagstoff\tFagartikkel\tVG1\tKjernestoff\t",
+                "x\t\tBrøkregning\t\t\t\thttp://red.ndla.no/nb/node/165411?fag=161000\t\t\tVG1\tKjernestoff\t",
+                "x\t\t\t\tBrøk og desimaltall\t\thttp://red.ndla.no/nb/node/165422?fag=161000\tFagstoff\tFagartikkel\tVG1\tKjernestoff\t",
+                "x\tProsent\t\t\t\t\thttp://red.ndla.no/nb/node/165402?fag=161000\t\t\tVG1\tKjernestoff\t",
+                "x\t\t\t\tFellesnevner\t\thttp://red.ndla.no/nb/node/165403?fag=161000\tFagstoff\tFagartikkel\tVG1\tKjernestoff\tx",
+                "x\t\t\t\tProsentregning\t\thttp://red.ndla.no/nb/node/165423?fag=161000\tFagstoff\tFagartikkel\tVG1\tKjernestoff\t",
+                "x\tGeometri\t\t\t\t\thttp://red.ndla.no/nb/node/165404?fag=161000\t\t\tVG1\tKjernestoff\t",
+                "x\t\tTrekanter\t\t\t\thttp://red.ndla.no/nb/node/165414?fag=161000\t\t\tVG1\tKjernestoff\t",
+                "x\t\t\t\tPytagoras\t\thttp://red.ndla.no/nb/node/165424?fag=161000\tFagstoff\tFagartikkel\tVG1\tKjernestoff\t"
+        };
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+        restClient.getRetries().setBackoff(2, 1, 5);
+        // the first row of Fellesnevner is still being created when the second is ready to be imported
+        api.latency(200, 0, request -> request.startsWith("POST /v1/resources ") && request.contains("urn:resource:1:165403"))
+                .errorRate(1, request -> request.startsWith("POST /v1/topics ") && request.contains("urn:topic:1:165404"));
+        Importer importer = new Importer(restClient, 4);
+        importer.doImport(subject);
+        List<Entity> entities = parse();
+        importer.classify(entities);
+        importer.provision(entities);
+
+        try {
+            new ConcurrentImporter(importer, 4).importAll(entities);
+            fail("Expected the import of Geometri to fail");
+        } catch (IllegalStateException e) {
+            assertEquals("1 entities failed to import and 2 were skipped because their parent failed, see the log for details", e.getMessage());
+        }
+
+        api.errorRate(0);
+        Map<String, Integer> ranks = new HashMap<>();
+        for (SubjectTopicIndexDocument connection : restClient.getSubjectTopics()) {
+            ranks.put(connection.subjectid + " " + connection.topicid, connection.rank);
+        }
+        for (TopicSubtopicIndexDocument connection : restClient.getTopicSubtopics()) {
+            ranks.put(connection.topicid + " " + connection.subtopicid, connection.rank);
+        }
+        for (TopicResourceIndexDocument connection : restTemplate.getForObject(api.getUrl() + "/v1/topic-resources", TopicResourceIndexDocument[].class)) {
+            ranks.put(connection.topicid + " " + connection.resourceId, connection.rank);
+        }
+        // the topics and resources outside Geometri, with Fellesnevner under both Brøk and Prosent
+        assertEquals(8, ranks.size());
+        for (Entity entity : entities.subList(0, 8)) {
+            assertEquals(entity.name, Integer.valueOf(entity.rank), ranks.get(entity.parent.getId() + " " + entity.getId()));
+        }
+        // the rows of Fellesnevner are imported one after the other, so the second only connects what the first created
+        assertEquals(4, getCalls(restClient, "POST /v1/resources"));
+        assertEquals(1, getErrors(restClient));
+        assertEquals(null, restClient.findTopic(URI.create("urn:topic:1:165404")));
+        assertEquals(null, restClient.findTopic(URI.create("urn:topic:1:165414")));
+        assertEquals(null, restClient.findResource(URI.create("urn:resource:1:165424")));
+    }
+
+    @Test
+    public void collections_of_an_existing_resource_are_read_once() {
+        lines = new String[]{
+                lines[0],
+                lines[1] + "\tSekundærtilknytning",
+                "x\tDesimaltall\t\t\t\t\thttp://red.ndla.no/nb/node/165501?fag=161000\t\t\tVG1\tKjernestoff\t",
+                "x\t\t\t\tAvrunding\tAvrunding\thttp://red.ndla.no/nb/node/165503?fag=161000\tFagstoff\tFagartikkel\tVG1\tKjernestoff\t",
+                "x\tOverslag\t\t\t\t\thttp://red.ndla.no/nb/node/165502?fag=161000\t\t\tVG1\tKjernestoff\t",
+                "x\t\t\t\tAvrunding\tAvrunding av tal\thttp://red.ndla.no/nb/node/165503?fag=161000\tFagstoff\tFagartikkel\tVG1\tKjernestoff\tx"
+        };
+        importSheet();
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+
+        importSheet(restClient);
+
+        assertEquals(1, getCalls(restClient, "GET /v1/resources/{id}/resource-types"));
+        assertEquals(1, getCalls(restClient, "GET /v1/resources/{id}/filters"));
+        assertEquals(1, getCalls(restClient, "GET /v1/resources/{id}/translations"));
+        assertEquals(2, getCalls(restClient, "PUT /v1/resources/{id}/translations/{language}"));
+    }
+
+    @Test
+    public void resumed_import_only_imports_the_rest_of_the_sheet() throws Exception {
+        Path file = Files.createTempFile("import", ".journal");
+        try (ImportJournal journal = ImportJournal.open(file, false)) {
+            importSheet(new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate), journal);
+        }
+        List<String> journaled = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(4, journaled.size());
+        // the import stopped after the topics, in the middle of writing the first resource
+        Files.write(file, (journaled.get(0) + "\n" + journaled.get(1) + "\n" + journaled.get(2).substring(0, 20)).getBytes(StandardCharsets.UTF_8));
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+
+        Importer importer;
+        try (ImportJournal journal = ImportJournal.open(file, true)) {
+            importer = importSheet(restClient, journal);
+        }
+
+        assertEquals(0, getCalls(restClient, "GET /v1/topics/{id}"));
+        assertEquals(2, getCalls(restClient, "GET /v1/resources/{id}"));
+        assertTrue(importer.getSummary(), importer.getSummary().startsWith("Imported 3 entities"));
+        ResourceIndexDocument[] resources = restTemplate.getForObject(api.getUrl() + "/v1/topics/urn:topic:1:165194/resources", ResourceIndexDocument[].class);
+        assertEquals(2, resources.length);
+        try (ImportJournal journal = ImportJournal.open(file, true)) {
+            assertEquals(4, journal.size());
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    public void transient_errors_are_retried() {
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+        restClient.getRetries().setBackoff(10, 1, 5);
+        api.errorRate(0.3);
+
+        importSheet(restClient);
+
+        assertTrue(api.getInjectedErrors() > 0);
+        api.errorRate(0);
+        ResourceIndexDocument[] resources = restTemplate.getForObject(api.getUrl() + "/v1/topics/urn:topic:1:165194/resources", ResourceIndexDocument[].class);
+        assertEquals(2, resources.length);
+        assertEquals(0, getErrors(restClient));
+    }
+
+    @Test
+    public void timed_out_calls_are_retried() throws Exception {
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setReadTimeout(100);
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, new RestTemplate(requestFactory));
+        restClient.getRetries().setBackoff(10, 1, 5);
+        restClient.createSubject(URI.create("urn:subject:3"), "Fysikk", null);
+        api.latency(1000, 0);
+        Thread recovery = new Thread(() -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(250);
+            } catch (InterruptedException e) {
+                return;
+            }
+            api.latency(0, 0);
+        });
+        recovery.start();
+
+        assertEquals("Fysikk", restClient.getSubject(URI.create("urn:subject:3")).name);
+
+        recovery.join();
+        assertTrue(restClient.getRetries().getStatistics(), restClient.getRetries().getStatistics().matches("Retries: [1-9].*"));
+    }
+
+    @Test
+    public void calls_are_rate_limited() {
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+        restClient.getRetries().setRateLimiter(new RateLimiter(50, 1));
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 11; i++) {
+            restClient.getRelevances();
+        }
+
+        assertTrue(System.currentTimeMillis() - start >= 180);
+    }
+
+    @Test
+    public void dry_run_plans_the_import_without_writing() throws Exception {
+        importSheet();
+        lines[4] = lines[4].replace("Andregradslikninger", "Andregradslikningar");
+        lines[5] = lines[5].replace("\t\thttp", "\tFyrstegradslikningar\thttp");
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), null, null, null, restTemplate);
+        restClient.setReadOnly(true);
+        ResponseSnapshot recorded = ResponseSnapshot.record();
+        restClient.setSnapshot(recorded);
+        StringWriter plan = new StringWriter();
+        Importer importer = new Importer(restClient);
+        importer.setDryRun(new DryRun(plan));
+
+        importSheet(importer);
+
+        String[] operations = plan.toString().split("\n");
+        assertEquals(2, operations.length);
+        assertTrue(operations[0], operations[0].contains("\"endpoint\":\"PUT /v1/resources/{id}\"") && operations[0].contains("Andregradslikningar"));
+        assertTrue(operations[1], operations[1].contains("\"endpoint\":\"PUT /v1/resources/{id}/translations/{language}\"") && operations[1].contains("\"line\":5"));
+        assertEquals("Andregradslikninger", restClient.getResource(URI.create("urn:resource:1:165195")).name);
+
+        File snapshot = File.createTempFile("snapshot", ".json");
+        recorded.write(snapshot);
+        TaxonomyRestClient offline = new TaxonomyRestClient("http://localhost:1", null, null, null, new RestTemplate());
+        offline.setSnapshot(ResponseSnapshot.replay(snapshot));
+        StringWriter replayed = new StringWriter();
+        importer = new Importer(offline);
+        importer.setDryRun(new DryRun(replayed));
+
+        importSheet(importer);
+
+        assertEquals(plan.toString(), replayed.toString());
+        assertTrue(snapshot.delete());
+    }
+
+    @Test
+    public void warm_run_reads_nothing_but_the_spot_checks() throws Exception {
+        Path directory = Files.createTempDirectory("mirror");
+        Importer importer = new Importer(new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate));
+        importer.setMirror(directory, TimeUnit.HOURS.toMillis(1), 5);
+        importSheet(importer);
+        Path file = TaxonomyMirror.getFile(directory, api.getUrl(), subject.getId());
+        assertTrue(Files.exists(file));
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+        importer = new Importer(restClient);
+        importer.setMirror(directory, TimeUnit.HOURS.toMillis(1), 5);
+
+        importSheet(importer);
+
+        assertTrue(importer.getSummary(), importer.getSummary().endsWith("0 creates, 0 updates, 0 deletes"));
+        assertEquals(0, getCalls(restClient, "GET /v1/subjects/{id}/topics"));
+        assertEquals(0, getCalls(restClient, "GET /v1/subject-topics"));
+        assertEquals(0, getCalls(restClient, "GET /v1/topic-subtopics"));
+        assertEquals(0, getCalls(restClient, "GET /v1/topics/{id}/filters"));
+        assertEquals(0, getCalls(restClient, "GET /v1/topics/{id}/translations"));
+        assertEquals(0, getCalls(restClient, "GET /v1/resources/{id}/resource-types"));
+        assertEquals(0, getCalls(restClient, "GET /v1/resources/{id}/filters"));
+        assertEquals(5, getCalls(restClient, "GET /v1/subjects/{id}") + getCalls(restClient, "GET /v1/topics/{id}") + getCalls(restClient, "GET /v1/resources/{id}"));
+        assertEquals(1, getCalls(restClient, "GET /v1/topics/{id}/resources"));
+        assertTrue(Files.exists(file));
+        deleteDirectory(directory);
+    }
+
+    @Test
+    public void mirror_that_disagrees_with_the_api_is_not_used() throws Exception {
+        Path directory = Files.createTempDirectory("mirror");
+        Importer importer = new Importer(new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate));
+        importer.setMirror(directory, TimeUnit.HOURS.toMillis(1), 5);
+        importSheet(importer);
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+        restClient.updateEntity(URI.create("urn:resource:1:165195"), "Endret utenom importen", null, "Resource");
+        importer = new Importer(restClient);
+        importer.setMirror(directory, TimeUnit.HOURS.toMillis(1), Integer.MAX_VALUE);
+
+        importSheet(importer);
+
+        assertTrue(importer.getSummary(), importer.getSummary().endsWith("0 creates, 1 updates, 0 deletes"));
+        assertEquals(1, getCalls(restClient, "GET /v1/subject-topics"));
+        assertEquals("Andregradslikninger", restClient.getResource(URI.create("urn:resource:1:165195")).name);
+        deleteDirectory(directory);
+    }
+
+    @Test
+    public void deleting_a_subject_deletes_its_topics_and_resources() {
+        subject = new Entity.Builder().type("Subject").name("Slettes").id(URI.create("urn:subject:2")).build();
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+        Importer importer = importSheet(restClient);
+
+        assertEquals(4, importer.deleteTopicsAndResources(subject.getId()));
+
+        assertEquals(0, restClient.getTopicsForSubject(subject.getId()).length);
+        assertEquals(null, restClient.findTopic(URI.create("urn:topic:1:165194")));
+        assertEquals(null, restClient.findResource(URI.create("urn:resource:1:165195")));
+        assertEquals(null, restClient.findResource(URI.create("urn:resource:1:165196")));
+        assertEquals(0, getErrors(restClient));
+    }
+
+    @Test
+    public void unchanged_subtrees_are_skipped() throws Exception {
+        lines = new String[]{
+                lines[0],
+                lines[1],
+                lines[2], lines[3], lines[4], lines[5],
+                "x\tGeometri\t\t\t\t\thttp://red.ndla.no/nb/node/165197?fag=161000\t\t\tVG1\tKjernestoff",
+                "x\t\t\t\tTrekanter\t\thttp://red.ndla.no/nb/node/165198?fag=161000\tFagstoff\tFagartikkel\tVG1\tKjernestoff"
+        };
+        Path directory = Files.createTempDirectory("hashes");
+        Importer importer = new Importer(new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate));
+        importer.setSubtreeHashes(directory);
+        importSheet(importer);
+        lines[7] = lines[7].replace("Trekanter", "Trekantar");
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+        importer = new Importer(restClient);
+        importer.setSubtreeHashes(directory);
+
+        importSheet(importer);
+
+        // the subject, Geometri and Trekantar
+        assertTrue(importer.getSummary(), importer.getSummary().startsWith("Imported 3 entities"));
+        assertTrue(importer.getSummary(), importer.getSummary().endsWith("0 creates, 1 updates, 0 deletes"));
+        assertEquals(1, getCalls(restClient, "GET /v1/resources/{id}"));
+        assertEquals(1, getCalls(restClient, "GET /v1/topics/{id}/resources"));
+        assertEquals("Trekantar", restClient.getResource(URI.create("urn:resource:1:165198")).name);
+        deleteDirectory(directory);
+    }
+
+    @Test
+    public void unchanged_sheets_in_a_batch_are_skipped() throws Exception {
+        Path directory = Files.createTempDirectory("batch");
+        Files.write(directory.resolve("3.tsv"), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        Path file = ImportedSheets.getFile(directory, api.getUrl());
+        importBatch(directory, new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate), false);
+        assertTrue(Files.exists(file));
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+
+        assertEquals(1, importBatch(directory, restClient, false).getSkipped());
+        assertTrue(restClient.getMetrics().getStatistics().isEmpty());
+
+        assertEquals(0, importBatch(directory, restClient, true).getSkipped());
+        assertEquals(1, getCalls(restClient, "GET /v1/subjects/{id}/topics"));
+        assertEquals(0, importBatch(directory, restClient, false, true).getSkipped());
+        deleteDirectory(directory);
+    }
+
+    @Test
+    public void subjects_of_a_batch_read_the_connections_once() throws Exception {
+        Path directory = Files.createTempDirectory("batch");
+        Files.write(directory.resolve("3.tsv"), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        // the second subject has topics and resources of its own
+        for (int i = 2; i < lines.length; i++) {
+            lines[i] = lines[i].replace("/node/1651", "/node/1664");
+        }
+        Files.write(directory.resolve("4.tsv"), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        TaxonomyRestClient restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, restTemplate);
+        MetadataRegistry metadata = new MetadataRegistry(restClient);
+        ConnectionRegistry connections = new ConnectionRegistry(restClient);
+
+        for (int run = 0; run < 2; run++) {
+            BatchImport batchImport = new BatchImport(() -> new Importer(restClient, 1, metadata, connections), 1, false);
+            assertEquals(0, batchImport.run(BatchImport.readJobs(directory), 2));
+        }
+
+        assertEquals(1, getCalls(restClient, "GET /v1/subject-topics"));
+        assertEquals(1, getCalls(restClient, "GET /v1/topic-subtopics"));
+        assertEquals(2, getCalls(restClient, "POST /v1/subject-topics"));
+        assertEquals(2, getCalls(restClient, "POST /v1/topic-subtopics"));
+        assertEquals(0, getErrors(restClient));
+        assertEquals(2, restClient.getTopicsForSubject(URI.create("urn:subject:4")).length);
+        deleteDirectory(directory);
+    }
+
+    @Test
+    public void injects_latency_and_errors() {
+        api.latency(20, 5).errorRate(1);
+
+        long start = System.currentTimeMillis();
+        try {
+            restTemplate.getForObject(api.getUrl() + "/v1/subjects", Object[].class);
+            fail("Expected an injected error");
+        } catch (HttpServerErrorException e) {
+            assertEquals(503, e.getRawStatusCode());
+        }
+        assertTrue(System.currentTimeMillis() - start >= 15);
+        assertEquals(1, api.getInjectedErrors());
+    }
+
+    private BatchImport importBatch(Path directory, TaxonomyRestClient restClient, boolean force) throws Exception {
+        return importBatch(directory, restClient, force, false);
+    }
+
+    private BatchImport importBatch(Path directory, TaxonomyRestClient restClient, boolean force, boolean deleteSubjects) throws Exception {
+        BatchImport batchImport = new BatchImport(() -> new Importer(restClient), 1, deleteSubjects);
+        batchImport.setImportedSheets(ImportedSheets.read(ImportedSheets.getFile(directory, api.getUrl())), force);
+        assertEquals(0, batchImport.run(BatchImport.readJobs(directory), 1));
+        return batchImport;
+    }
+
+    private void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * @return the number of failed calls, not counting the 404s of lookups for entities that do not exist yet
+     */
+    private long getErrors(TaxonomyRestClient restClient) {
+        long errors = 0;
+        for (CallMetrics.EndpointStatistics statistics : restClient.getMetrics().getStatistics()) {
+            for (Map.Entry<String, Long> error : statistics.errors.entrySet()) {
+                if (!error.getKey().equals("404")) errors += error.getValue();
+            }
+        }
+        return errors;
+    }
+
+    private long getCalls(TaxonomyRestClient restClient, String endpoint) {
+        for (CallMetrics.EndpointStatistics statistics : restClient.getMetrics().getStatistics()) {
+            if (statistics.endpoint.equals(endpoint)) return statistics.calls;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,699 @@
+package no.ndla.taxonomy;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory stand-in for the taxonomy API, serving every endpoint {@link no.ndla.taxonomy.client.TaxonomyRestClient} uses.
+ * <p>
+ * Lets the importer run against a local HTTP server without the real API and its database, e.g. for load and
+ * performance work. Each request can be delayed by a fixed latency plus random jitter, and a given share of requests
+ * fail with <code>503 Service Unavailable</code> before they touch any data, so they are always safe to retry. Both
+ * can be limited to some requests, e.g. to slow down or fail the creation of one entity.
+ * The delays and errors are drawn at random for each request, so two runs with the same settings need not fail the same requests.
+ * <p>
+ * Run it on its own with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dstart-class=no.ndla.taxonomy.InMemoryTaxonomyApi -Dexec.args="--port 5000 --latency 20 --jitter 10"</code>.
+ */
+public class InMemoryTaxonomyApi implements AutoCloseable {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Map<String, String> nodeTypes = new HashMap<String, String>() {
+        {
+            put("subjects", "subject");
+            put("topics", "topic");
+            put("resources", "resource");
+        }
+    };
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "in-memory-taxonomy-api");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile int latency;
+    private volatile int jitter;
+    private volatile Predicate<String> latencyScope = request -> true;
+    private volatile double errorRate;
+    private volatile Predicate<String> errorScope = request -> true;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    private final Map<String, Map<URI, Node>> nodes = new HashMap<>();
+    private final Map<String, Map<URI, Connection>> connections = new HashMap<>();
+    private final Map<URI, Filter> filters = new LinkedHashMap<>();
+    private final Map<URI, FilterConnection> filterConnections = new LinkedHashMap<>();
+    private final Map<URI, String> relevances = new LinkedHashMap<>();
+    private final Map<URI, ResourceType> resourceTypes = new LinkedHashMap<>();
+    private final Map<URI, ResourceResourceType> resourceResourceTypes = new LinkedHashMap<>();
+    private final Map<String, JsonNode> urlMappings = new HashMap<>();
+
+    public InMemoryTaxonomyApi(int port) throws IOException {
+        for (String controller : nodeTypes.keySet()) {
+            nodes.put(controller, new LinkedHashMap<>());
+        }
+        for (String controller : Arrays.asList("subject-topics", "topic-subtopics", "topic-resources")) {
+            connections.put(controller, new LinkedHashMap<>());
+        }
+        // without it the body of a response waits for the ACK of its headers, adding 40 ms on a kept alive connection
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 100);
+        server.createContext("/", this::exchange);
+        server.setExecutor(executor);
+    }
+
+    /**
+     * @param latency milliseconds to wait before answering each request
+     * @param jitter  up to this many milliseconds are added to or taken from the latency at random
+     */
+    public InMemoryTaxonomyApi latency(int latency, int jitter) {
+        return latency(latency, jitter, request -> true);
+    }
+
+    /**
+     * @param latency milliseconds to wait before answering each request in scope
+     * @param jitter  up to this many milliseconds are added to or taken from the latency at random
+     * @param scope   whether a request is delayed, given its method, path and body, e.g. <code>POST /v1/topics {"id":...}</code>
+     */
+    public InMemoryTaxonomyApi latency(int latency, int jitter, Predicate<String> scope) {
+        this.latencyScope = scope;
+        this.latency = latency;
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * @param errorRate share of requests, from 0 to 1, to fail with 503 Service Unavailable
+     */
+    public InMemoryTaxonomyApi errorRate(double errorRate) {
+        return errorRate(errorRate, request -> true);
+    }
+
+    /**
+     * @param errorRate share of the requests in scope, from 0 to 1, to fail with 503 Service Unavailable
+     * @param scope     whether a request may fail, given its method, path and body, e.g. <code>POST /v1/topics {"id":...}</code>
+     */
+    public InMemoryTaxonomyApi errorRate(double errorRate, Predicate<String> scope) {
+        this.errorScope = scope;
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    public InMemoryTaxonomyApi start() {
+        server.start();
+        return this;
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static class Node {
+        URI id;
+        String name;
+        URI contentUri;
+        final Map<String, String> translations = new TreeMap<>();
+    }
+
+    private static class Connection {
+        URI id;
+        URI parentId;
+        URI childId;
+        int rank;
+        boolean primary;
+    }
+
+    private static class Filter {
+        URI id;
+        String name;
+        URI subjectId;
+    }
+
+    private static class FilterConnection {
+        URI id;
+        URI entityId;
+        URI filterId;
+        URI relevanceId;
+    }
+
+    private static class ResourceType {
+        URI id;
+        String name;
+        URI parentId;
+    }
+
+    private static class ResourceResourceType {
+        URI id;
+        URI resourceId;
+        URI resourceTypeId;
+    }
+
+    private static class Response {
+        final int status;
+        final Object body;
+        String location;
+
+        Response(int status, Object body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static class StatusException extends RuntimeException {
+        final int status;
+
+        StatusException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void exchange(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            JsonNode body = readBody(exchange.getRequestBody());
+            String request = exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath() + " " + body;
+            delay(request);
+            Response response;
+            if (injectError(request)) {
+                injectedErrors.incrementAndGet();
+                response = new Response(503, error("Injected error"));
+            } else {
+                response = handle(exchange, body);
+            }
+            send(exchange, response);
+        } catch (StatusException e) {
+            send(exchange, new Response(e.status, error(e.getMessage())));
+        } catch (RuntimeException e) {
+            send(exchange, new Response(500, error(e.toString())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void delay(String request) {
+        if (!latencyScope.test(request)) return;
+        int delay = latency;
+        if (jitter > 0) {
+            delay += ThreadLocalRandom.current().nextInt(2 * jitter + 1) - jitter;
+        }
+        if (delay <= 0) return;
+        try {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean injectError(String request) {
+        return errorRate > 0 && errorScope.test(request) && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", message);
+        return error;
+    }
+
+    private static void send(HttpExchange exchange, Response response) throws IOException {
+        if (response.location != null) {
+            exchange.getResponseHeaders().set("Location", response.location);
+        }
+        if (response.body == null) {
+            exchange.sendResponseHeaders(response.status, -1);
+            return;
+        }
+        byte[] body = mapper.writeValueAsBytes(response.body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        exchange.sendResponseHeaders(response.status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private Response handle(HttpExchange exchange, JsonNode body) throws IOException {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().replaceAll("^/|/$", "").split("/");
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        if (path.length < 2 || !path[0].equals("v1")) throw new StatusException(404, "No such endpoint");
+        String controller = path[1];
+        URI id = path.length > 2 ? URI.create(path[2]) : null;
+        String sub = path.length > 3 ? path[3] : null;
+
+        synchronized (this) {
+            if (nodeTypes.containsKey(controller)) {
+                return handleNode(method, controller, id, sub, path.length > 4 ? path[4] : null, query, body);
+            }
+            if (connections.containsKey(controller)) {
+                return handleConnection(method, controller, id, body);
+            }
+            switch (controller) {
+                case "filters":
+                    return handleFilter(method, body);
+                case "topic-filters":
+                case "resource-filters":
+                    return handleFilterConnection(method, controller, id, body);
+                case "relevances":
+                    return handleRelevance(method, body);
+                case "resource-types":
+                    return handleResourceType(method, body);
+                case "resource-resourcetypes":
+                    return handleResourceResourceType(method, id, body);
+                case "url":
+                    if (method.equals("PUT") && id != null && id.toString().equals("mapping")) {
+                        urlMappings.put(body.path("url").asText(), body);
+                        return new Response(204, null);
+                    }
+            }
+        }
+        throw new StatusException(404, "No such endpoint");
+    }
+
+    private Response handleNode(String method, String controller, URI id, String sub, String language, Map<String, String> query, JsonNode body) {
+        Map<URI, Node> nodes = this.nodes.get(controller);
+        if (id == null) {
+            if (method.equals("GET")) {
+                return new Response(200, nodes.values().stream().map(node -> toDocument(node, query.get("language"))).collect(Collectors.toList()));
+            }
+            if (method.equals("POST")) {
+                Node node = new Node();
+                node.id = body.hasNonNull("id") ? URI.create(body.get("id").asText()) : newId(nodeTypes.get(controller));
+                if (nodes.containsKey(node.id)) throw new StatusException(409, node.id + " already exists");
+                node.name = text(body, "name");
+                node.contentUri = uri(body, "contentUri");
+                nodes.put(node.id, node);
+                return created(controller, node.id);
+            }
+            throw new StatusException(405, method + " not allowed");
+        }
+
+        Node node = find(nodes, id);
+        if (sub == null) {
+            switch (method) {
+                case "GET":
+                    return new Response(200, toDocument(node, query.get("language")));
+                case "PUT":
+                    node.name = text(body, "name");
+                    node.contentUri = uri(body, "contentUri");
+                    return new Response(204, null);
+                case "DELETE":
+                    delete(node.id);
+                    return new Response(204, null);
+            }
+            throw new StatusException(405, method + " not allowed");
+        }
+
+        switch (sub) {
+            case "translations":
+                if (language == null && method.equals("GET")) {
+                    List<Map<String, Object>> translations = new ArrayList<>();
+                    node.translations.forEach((key, name) -> translations.add(document("language", key, "name", name)));
+                    return new Response(200, translations);
+                }
+                if (language != null && method.equals("PUT")) {
+                    node.translations.put(language, text(body, "name"));
+                    return new Response(204, null);
+                }
+                if (method.equals("GET") && node.translations.containsKey(language)) {
+                    return new Response(200, document("language", language, "name", node.translations.get(language)));
+                }
+                throw new StatusException(404, "No translation " + language + " for " + id);
+            case "topics":
+                if (controller.equals("subjects")) return new Response(200, getSubjectTopics(node, Boolean.parseBoolean(query.get("recursive"))));
+                return new Response(200, getSubtopics(node));
+            case "resources":
+                return new Response(200, getTopicResources(node));
+            case "filters":
+                if (controller.equals("subjects")) {
+                    return new Response(200, filters.values().stream()
+                            .filter(filter -> filter.subjectId.equals(node.id))
+                            .map(filter -> document("id", filter.id, "name", filter.name, "subjectId", filter.subjectId))
+                            .collect(Collectors.toList()));
+                }
+                return new Response(200, filterConnections.values().stream()
+                        .filter(connection -> connection.entityId.equals(node.id))
+                        .map(connection -> document("id", connection.filterId, "name", filters.get(connection.filterId).name,
+                                "connectionId", connection.id, "relevanceId", connection.relevanceId))
+                        .collect(Collectors.toList()));
+            case "resource-types":
+                return new Response(200, resourceResourceTypes.values().stream()
+                        .filter(connection -> connection.resourceId.equals(node.id))
+                        .map(connection -> {
+                            ResourceType resourceType = resourceTypes.get(connection.resourceTypeId);
+                            return document("id", resourceType.id, "parentId", resourceType.parentId, "name", resourceType.name, "connectionId", connection.id);
+                        })
+                        .collect(Collectors.toList()));
+        }
+        throw new StatusException(404, "No such endpoint");
+    }
+
+    private Map<String, Object> toDocument(Node node, String language) {
+        String name = language != null ? node.translations.getOrDefault(language, node.name) : node.name;
+        return document("id", node.id, "name", name, "contentUri", node.contentUri);
+    }
+
+    private List<Map<String, Object>> getSubjectTopics(Node subject, boolean recursive) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        Deque<Connection> queue = new ArrayDeque<>(getChildren("subject-topics", subject.id));
+        while (!queue.isEmpty()) {
+            Connection connection = queue.remove();
+            Node topic = nodes.get("topics").get(connection.childId);
+            Map<String, Object> document = toDocument(topic, null);
+            document.put("parent", connection.parentId);
+            document.put("connectionId", connection.id);
+            result.add(document);
+            if (recursive) queue.addAll(getChildren("topic-subtopics", topic.id));
+        }
+        return result;
+    }
+
+    private List<Map<String, Object>> getSubtopics(Node topic) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Connection connection : getChildren("topic-subtopics", topic.id)) {
+            Map<String, Object> document = toDocument(nodes.get("topics").get(connection.childId), null);
+            document.put("isPrimary", connection.primary);
+            result.add(document);
+        }
+        return result;
+    }
+
+    private List<Map<String, Object>> getTopicResources(Node topic) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Connection connection : getChildren("topic-resources", topic.id)) {
+            Map<String, Object> document = toDocument(nodes.get("resources").get(connection.childId), null);
+            document.put("topicId", topic.id);
+            document.put("connectionId", connection.id);
+            document.put("isPrimary", connection.primary);
+            document.put("rank", connection.rank);
+            result.add(document);
+        }
+        return result;
+    }
+
+    private List<Connection> getChildren(String controller, URI parentId) {
+        return connections.get(controller).values().stream()
+                .filter(connection -> connection.parentId.equals(parentId))
+                .sorted(Comparator.comparingInt(connection -> connection.rank))
+                .collect(Collectors.toList());
+    }
+
+    private void delete(URI id) {
+        for (Map<URI, Node> nodes : this.nodes.values()) {
+            nodes.remove(id);
+        }
+        for (Map<URI, Connection> connections : this.connections.values()) {
+            connections.values().removeIf(connection -> connection.parentId.equals(id) || connection.childId.equals(id));
+        }
+        filterConnections.values().removeIf(connection -> connection.entityId.equals(id));
+        resourceResourceTypes.values().removeIf(connection -> connection.resourceId.equals(id));
+    }
+
+    private Response handleConnection(String method, String controller, URI id, JsonNode body) {
+        Map<URI, Connection> connections = this.connections.get(controller);
+        String[] fields = getConnectionFields(controller);
+        if (id == null) {
+            if (method.equals("GET")) {
+                return new Response(200, connections.values().stream().map(connection -> toDocument(connection, fields)).collect(Collectors.toList()));
+            }
+            if (method.equals("POST")) {
+                Connection connection = new Connection();
+                connection.id = newId(controller.substring(0, controller.length() - 1));
+                connection.parentId = uri(body, fields[0]);
+                connection.childId = uri(body, fields[1]);
+                connection.rank = body.path("rank").asInt();
+                requireNode(controller.startsWith("subject") ? "subjects" : "topics", connection.parentId);
+                requireNode(controller.endsWith("resources") ? "resources" : "topics", connection.childId);
+                for (Connection existing : connections.values()) {
+                    if (existing.parentId.equals(connection.parentId) && existing.childId.equals(connection.childId)) {
+                        throw new StatusException(409, connection.childId + " is already connected to " + connection.parentId);
+                    }
+                }
+                connections.put(connection.id, connection);
+                boolean hasPrimary = connections.values().stream().anyMatch(other -> other.childId.equals(connection.childId) && other.primary);
+                setPrimary(connections, connection, body.path("primary").asBoolean() || !hasPrimary);
+                return created(controller, connection.id);
+            }
+            throw new StatusException(405, method + " not allowed");
+        }
+
+        Connection connection = connections.get(id);
+        if (connection == null) throw new StatusException(404, id + " not found");
+        switch (method) {
+            case "GET":
+                return new Response(200, toDocument(connection, fields));
+            case "PUT":
+                connection.rank = body.path("rank").asInt();
+                setPrimary(connections, connection, body.path("primary").asBoolean());
+                return new Response(204, null);
+            case "DELETE":
+                connections.remove(id);
+                return new Response(204, null);
+        }
+        throw new StatusException(405, method + " not allowed");
+    }
+
+    private static String[] getConnectionFields(String controller) {
+        switch (controller) {
+            case "subject-topics":
+                return new String[]{"subjectid", "topicid"};
+            case "topic-subtopics":
+                return new String[]{"topicid", "subtopicid"};
+            default:
+                return new String[]{"topicid", "resourceId"};
+        }
+    }
+
+    private static Map<String, Object> toDocument(Connection connection, String[] fields) {
+        return document("id", connection.id, fields[0], connection.parentId, fields[1], connection.childId,
+                "rank", connection.rank, "primary", connection.primary);
+    }
+
+    private static void setPrimary(Map<URI, Connection> connections, Connection connection, boolean primary) {
+        connection.primary = primary;
+        if (!primary) return;
+        for (Connection other : connections.values()) {
+            if (other != connection && other.childId.equals(connection.childId)) other.primary = false;
+        }
+    }
+
+    private Response handleFilter(String method, JsonNode body) {
+        if (method.equals("GET")) {
+            return new Response(200, filters.values().stream()
+                    .map(filter -> document("id", filter.id, "name", filter.name, "subjectId", filter.subjectId))
+                    .collect(Collectors.toList()));
+        }
+        if (!method.equals("POST")) throw new StatusException(405, method + " not allowed");
+        Filter filter = new Filter();
+        filter.id = body.hasNonNull("id") ? uri(body, "id") : newId("filter");
+        if (filters.containsKey(filter.id)) throw new StatusException(409, filter.id + " already exists");
+        filter.name = text(body, "name");
+        filter.subjectId = uri(body, "subjectId");
+        requireNode("subjects", filter.subjectId);
+        filters.put(filter.id, filter);
+        return created("filters", filter.id);
+    }
+
+    private Response handleFilterConnection(String method, String controller, URI id, JsonNode body) {
+        if (method.equals("DELETE") && id != null) {
+            if (filterConnections.remove(id) == null) throw new StatusException(404, id + " not found");
+            return new Response(204, null);
+        }
+        if (!method.equals("POST") || id != null) throw new StatusException(405, method + " not allowed");
+        FilterConnection connection = new FilterConnection();
+        connection.id = newId(controller.substring(0, controller.length() - 1));
+        connection.entityId = uri(body, controller.startsWith("topic") ? "topicId" : "resourceId");
+        connection.filterId = uri(body, "filterId");
+        connection.relevanceId = uri(body, "relevanceId");
+        requireNode(controller.startsWith("topic") ? "topics" : "resources", connection.entityId);
+        if (!filters.containsKey(connection.filterId)) throw new StatusException(400, "No filter " + connection.filterId);
+        if (connection.relevanceId != null && !relevances.containsKey(connection.relevanceId)) {
+            throw new StatusException(400, "No relevance " + connection.relevanceId);
+        }
+        filterConnections.put(connection.id, connection);
+        return created(controller, connection.id);
+    }
+
+    private Response handleRelevance(String method, JsonNode body) {
+        if (method.equals("GET")) {
+            List<Map<String, Object>> result = new ArrayList<>();
+            relevances.forEach((id, name) -> result.add(document("id", id, "name", name)));
+            return new Response(200, result);
+        }
+        if (!method.equals("POST")) throw new StatusException(405, method + " not allowed");
+        URI id = body.hasNonNull("id") ? uri(body, "id") : newId("relevance");
+        if (relevances.containsKey(id)) throw new StatusException(409, id + " already exists");
+        relevances.put(id, text(body, "name"));
+        return created("relevances", id);
+    }
+
+    private Response handleResourceType(String method, JsonNode body) {
+        if (method.equals("GET")) {
+            List<Map<String, Object>> result = new ArrayList<>();
+            for (ResourceType resourceType : resourceTypes.values()) {
+                if (resourceType.parentId == null) result.add(toDocument(resourceType));
+            }
+            return new Response(200, result);
+        }
+        if (!method.equals("POST")) throw new StatusException(405, method + " not allowed");
+        ResourceType resourceType = new ResourceType();
+        resourceType.id = body.hasNonNull("id") ? uri(body, "id") : newId("resourcetype");
+        if (resourceTypes.containsKey(resourceType.id)) throw new StatusException(409, resourceType.id + " already exists");
+        resourceType.name = text(body, "name");
+        resourceType.parentId = uri(body, "parentId");
+        if (resourceType.parentId != null && !resourceTypes.containsKey(resourceType.parentId)) {
+            throw new StatusException(400, "No resource type " + resourceType.parentId);
+        }
+        resourceTypes.put(resourceType.id, resourceType);
+        return created("resource-types", resourceType.id);
+    }
+
+    private Map<String, Object> toDocument(ResourceType resourceType) {
+        List<Map<String, Object>> subtypes = new ArrayList<>();
+        for (ResourceType subtype : resourceTypes.values()) {
+            if (resourceType.id.equals(subtype.parentId)) subtypes.add(toDocument(subtype));
+        }
+        return document("id", resourceType.id, "name", resourceType.name, "subtypes", subtypes);
+    }
+
+    private Response handleResourceResourceType(String method, URI id, JsonNode body) {
+        if (method.equals("DELETE") && id != null) {
+            if (resourceResourceTypes.remove(id) == null) throw new StatusException(404, id + " not found");
+            return new Response(204, null);
+        }
+        if (!method.equals("POST") || id != null) throw new StatusException(405, method + " not allowed");
+        ResourceResourceType connection = new ResourceResourceType();
+        connection.id = newId("resource-resourcetype");
+        connection.resourceId = uri(body, "resourceId");
+        connection.resourceTypeId = uri(body, "resourceTypeId");
+        requireNode("resources", connection.resourceId);
+        if (!resourceTypes.containsKey(connection.resourceTypeId)) throw new StatusException(400, "No resource type " + connection.resourceTypeId);
+        resourceResourceTypes.put(connection.id, connection);
+        return created("resource-resourcetypes", connection.id);
+    }
+
+    private Node find(Map<URI, Node> nodes, URI id) {
+        Node node = nodes.get(id);
+        if (node == null) throw new StatusException(404, id + " not found");
+        return node;
+    }
+
+    private void requireNode(String controller, URI id) {
+        if (id == null || !nodes.get(controller).containsKey(id)) throw new StatusException(400, "No such entity: " + id);
+    }
+
+    private static Response created(String controller, URI id) {
+        Response response = new Response(201, null);
+        response.location = "/v1/" + controller + "/" + id;
+        return response;
+    }
+
+    private static URI newId(String type) {
+        return URI.create("urn:" + type + ":" + UUID.randomUUID());
+    }
+
+    private static Map<String, Object> document(Object... keysAndValues) {
+        Map<String, Object> document = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            Object value = keysAndValues[i + 1];
+            document.put((String) keysAndValues[i], value instanceof URI ? value.toString() : value);
+        }
+        return document;
+    }
+
+    private static String text(JsonNode body, String field) {
+        JsonNode value = body.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    private static URI uri(JsonNode body, String field) {
+        String value = text(body, field);
+        return value == null ? null : URI.create(value);
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) return parameters;
+        for (String parameter : query.split("&")) {
+            String[] parts = parameter.split("=", 2);
+            parameters.put(URLDecoder.decode(parts[0], "UTF-8"), parts.length > 1 ? URLDecoder.decode(parts[1], "UTF-8") : "");
+        }
+        return parameters;
+    }
+
+    private static JsonNode readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        if (body.size() == 0) return NullNode.getInstance();
+        try {
+            return mapper.readTree(body.toByteArray());
+        } catch (JsonProcessingException e) {
+            throw new StatusException(400, "Malformed JSON: " + e.getOriginalMessage());
+        }
+    }
+
+    private static class Options {
+        @Parameter(names = "--port")
+        int port = 5000;
+
+        @Parameter(names = "--latency", description = "Milliseconds to wait before answering each request")
+        int latency = 0;
+
+        @Parameter(names = "--jitter", description = "Up to this many milliseconds are added to or taken from the latency at random")
+        int jitter = 0;
+
+        @Parameter(names = "--error-rate", description = "Share of requests, from 0 to 1, to fail with 503 Service Unavailable")
+        double errorRate = 0;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        new JCommander(options, args);
+        InMemoryTaxonomyApi api = new InMemoryTaxonomyApi(options.port).latency(options.latency, options.jitter).errorRate(options.errorRate).start();
+        System.out.println("In-memory taxonomy API listening on " + api.getUrl());
+        Thread.currentThread().join();
+    }
+}
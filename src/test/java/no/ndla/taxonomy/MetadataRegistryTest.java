@@ -0,0 +1,129 @@
+package no.ndla.taxonomy;
+
+import no.ndla.taxonomy.client.AsyncTaxonomyRestClient;
+import no.ndla.taxonomy.client.CallMetrics;
+import no.ndla.taxonomy.client.TaxonomyRestClient;
+import no.ndla.taxonomy.client.resourceTypes.ResourceTypeIndexDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.RestTemplate;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static no.ndla.taxonomy.TestUtils.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class MetadataRegistryTest {
+    InMemoryTaxonomyApi api;
+    TaxonomyRestClient restClient;
+    MetadataRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        api = new InMemoryTaxonomyApi(0).start();
+        restClient = new TaxonomyRestClient(api.getUrl(), CLIENT_ID, CLIENT_SECRET, TOKEN_SERVER, new RestTemplate());
+        registry = new MetadataRegistry(restClient);
+        restClient.createSubject(URI.create("urn:subject:1"), "Matematikk", null);
+        restClient.createSubject(URI.create("urn:subject:2"), "Fysikk", null);
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+    }
+
+    @Test
+    public void filters_with_the_same_name_belong_to_their_subject() {
+        URI first = registry.getFilterId(filter("VG1"), URI.create("urn:subject:1"));
+        URI second = registry.getFilterId(filter("VG1"), URI.create("urn:subject:2"));
+
+        assertNotEquals(first, second);
+        assertEquals(first, registry.getFilterId(filter("VG1"), URI.create("urn:subject:1")));
+        assertEquals(second, new MetadataRegistry(restClient).getFilterId(filter("VG1"), URI.create("urn:subject:2")));
+        assertEquals(2, getCalls("POST /v1/filters"));
+    }
+
+    @Test
+    public void concurrent_lookups_create_a_filter_once() throws Exception {
+        api.latency(20, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<URI>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(() -> registry.getFilterId(filter("VG2"), URI.create("urn:subject:1"))));
+        }
+        Set<URI> ids = new HashSet<>();
+        for (Future<URI> future : futures) {
+            ids.add(future.get());
+        }
+        executor.shutdown();
+
+        assertEquals(1, ids.size());
+        assertEquals(1, getCalls("POST /v1/filters"));
+        assertEquals(1, getCalls("GET /v1/subjects/{id}/filters"));
+    }
+
+    @Test
+    public void resource_types_and_relevances_are_loaded_once() {
+        URI resourceType = registry.getResourceTypeId(new ResourceType("Fagstoff"));
+        URI subtype = registry.getResourceTypeId(new ResourceType("Fagartikkel", "Fagstoff", null));
+        Relevance relevance = new Relevance();
+        relevance.name = Importer.KJERNESTOFF;
+
+        assertEquals(URI.create("urn:relevance:core"), registry.getRelevanceId(relevance));
+        assertEquals(resourceType, new MetadataRegistry(restClient).getResourceTypeId(new ResourceType("Fagstoff")));
+        assertEquals(subtype, registry.getResourceTypeId(new ResourceType("Fagartikkel")));
+        assertEquals(1, getCalls("GET /v1/relevances"));
+        assertEquals(2, getCalls("GET /v1/resource-types"));
+    }
+
+    @Test
+    public void provisions_the_metadata_of_a_sheet_parents_first() {
+        Entity subject = new Entity.Builder().type("Subject").name("Matematikk").id(URI.create("urn:subject:1")).build();
+        String[] lines = new String[]{
+                "Klar for import\tHovedemne\tEmneområde\tEmne\tTittelen på ressursen\tOversettelse (ikke påkrevd)\t\t\t\tFilter 1\t\tFilter 2",
+                "Import\tEmne nivå 1\tEmne nivå 2\tEmne nivå 3\tLæringsressurs\tnn\tLenke til gammelt system\tRessurstype\tSubressurstype\tFilter\tRelevans\tFilter\tRelevans",
+                "x\tTall og algebra\t\t\t\t\thttp://red.ndla.no/nb/node/165193?fag=161000\t\t\tVG1\tKjernestoff\tVG2\tKjernestoff",
+                "x\t\t\t\tAndregradslikninger\t\thttp://red.ndla.no/nb/node/165195?fag=161000\tFagstoff\tFagartikkel\tVG1\tTilleggsstoff\t\t",
+                "x\t\t\t\tFørstegradslikninger\t\thttp://red.ndla.no/nb/node/165196?fag=161000\tFagstoff\tFagartikkel\tVG2\tKjernestoff\t\t"
+        };
+        List<Entity> entities = new ArrayList<>();
+        TsvParser parser = new TsvParser(lines, subject);
+        while (parser.hasNext()) {
+            Entity entity = parser.next();
+            if (entity != null) entities.add(entity);
+        }
+
+        registry.provision(entities, new AsyncTaxonomyRestClient(restClient, 4));
+
+        assertEquals(2, getCalls("POST /v1/resource-types"));
+        assertEquals(2, getCalls("POST /v1/relevances"));
+        assertEquals(2, getCalls("POST /v1/filters"));
+        ResourceTypeIndexDocument[] resourceTypes = restClient.getResourceTypes();
+        assertEquals(1, resourceTypes.length);
+        assertEquals("Fagstoff", resourceTypes[0].name);
+        assertEquals("Fagartikkel", resourceTypes[0].subtypes.get(0).name);
+
+        registry.getFilterId(filter("VG2"), URI.create("urn:subject:1"));
+        assertEquals(2, getCalls("POST /v1/filters"));
+    }
+
+    private Filter filter(String name) {
+        Filter filter = new Filter();
+        filter.name = name;
+        return filter;
+    }
+
+    private long getCalls(String endpoint) {
+        for (CallMetrics.EndpointStatistics statistics : restClient.getMetrics().getStatistics()) {
+            if (statistics.endpoint.equals(endpoint)) return statistics.calls;
+        }
+        return 0;
+    }
+}
@@ -1,16 +1,24 @@
 package no.ndla.taxonomy;
 
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.io.ByteArrayInputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 
 import static org.junit.Assert.*;
 
 public class TsvParserTest {
+    private static final String[] HEADER = {"Klar for import\tHovedemne\tEmneområde\tEmne\tTittelen på ressursen\tOversettelse (ikke påkrevd)\t\t\tFilter 1\t\tFilter 2\t\tFilter 3\t\tFilter 4\t\tFilter 5\t\tFilter 6\t\tFilter 7",
+            "Import\tEmne nivå 1\tEmne nivå 2\tEmne nivå 3\tLæringsressurs\tnn\tLenke til gammelt system\tRessurstype\tSubressurstype\tFilter\tRelevans\tFilter\tRelevans\tFilter\tRelevans\tFilter\tRelevans\tFilter\tRelevans\tFilter\tRelevans\tFilter\tRelevans"};
 
     TsvParser parser;
 
@@ -518,11 +526,117 @@ public class TsvParserTest {
         Entity entity = parser.next();
     }
 
-    private void init(String[] lines) {
-        String[] header = new String[]{"Klar for import\tHovedemne\tEmneområde\tEmne\tTittelen på ressursen\tOversettelse (ikke påkrevd)\t\t\tFilter 1\t\tFilter 2\t\tFilter 3\t\tFilter 4\t\tFilter 5\t\tFilter 6\t\tFilter 7",
-                "Import\tEmne nivå 1\tEmne nivå 2\tEmne nivå 3\tLæringsressurs\tnn\tLenke til gammelt system\tRessurstype\tSubressurstype\tFilter\tRelevans\tFilter\tRelevans\tFilter\tRelevans\tFilter\tRelevans\tFilter\tRelevans\tFilter\tRelevans\tFilter\tRelevans"};
+    @Test
+    public void can_read_sheet_with_crlf_line_endings_from_channel() {
+        String sheet = String.join("\r\n", HEADER) + "\r\n"
+                + "x\t\t\t\tIntroduksjon til calculus\t\thttp://red.ndla.no/nb/node/138014?fag=54\tFagstoff\t\tVG1\tKjernestoff\r\n";
+
+        parser = new TsvParser(new TsvTokenizer(channel(sheet)), subject);
+        Entity entity = parser.next();
+
+        assertEquals("Introduksjon til calculus", entity.name);
+        assertEquals("Kjernestoff", entity.filters.get(0).relevance.name);
+        assertFalse(parser.hasNext());
+    }
+
+    @Test
+    public void reads_last_line_without_newline_from_channel() {
+        TsvTokenizer tokenizer = new TsvTokenizer(channel("a\tb\nc\td"));
+
+        assertTrue(tokenizer.nextRow());
+        assertEquals("b", tokenizer.getField(1));
+        assertTrue(tokenizer.nextRow());
+        assertEquals(2, tokenizer.getFieldCount());
+        assertEquals("d", tokenizer.getField(1));
+        assertFalse(tokenizer.nextRow());
+    }
+
+    @Test
+    public void decodes_character_split_between_buffers() {
+        // the two bytes of æ are the last byte of the first 64 KiB read and the first byte of the next
+        String padding = StringUtils.repeat('a', 64 * 1024 - 1);
+        TsvTokenizer tokenizer = new TsvTokenizer(channel(padding + "æøå\tBrøk\nsist"));
+
+        assertTrue(tokenizer.nextRow());
+        assertEquals(padding + "æøå", tokenizer.getField(0));
+        assertEquals("Brøk", tokenizer.getField(1));
+        assertTrue(tokenizer.nextRow());
+        assertEquals("sist", tokenizer.getLine());
+        assertFalse(tokenizer.nextRow());
+    }
+
+    @Test
+    public void waits_for_a_slow_channel_until_it_ends() {
+        String[] lines = {
+                "x\tBrøk og prosent\t\t\t\tBrøk og prosent\thttp://red.ndla.no/nb/node/165193?fag=161000\t\t\t\t",
+                "x\t\t\t\tForkorting av brøker\tForkorting av brøkar\thttp://red.ndla.no/nb/node/138016?fag=54\tFagstoff\t\tVG1\tKjernestoff",
+                "x\t\t\t\tÅ regne med prosent\t\thttp://red.ndla.no/nb/node/138015?fag=54\tFagstoff\t\tVG1\tTilleggsstoff"};
 
-        init(header, lines);
+        parser = new TsvParser(new TsvTokenizer(new SlowChannel(String.join("\n", ArrayUtils.addAll(HEADER, lines)) + "\n")), subject);
+        Entity topic = parser.next();
+        Entity first = parser.next();
+        Entity second = parser.next();
+
+        assertEquals("Brøk og prosent", topic.name);
+        assertEquals("Forkorting av brøker", first.name);
+        assertEquals("Forkorting av brøkar", first.translations.get("nn").name);
+        assertEquals("Å regne med prosent", second.name);
+        assertEquals(topic, second.parent);
+        assertEquals(2, second.rank);
+        assertFalse(parser.hasNext());
+    }
+
+    @Test
+    public void counts_lines_read_from_channel_after_the_spreadsheet_headers() {
+        TsvTokenizer tokenizer = new TsvTokenizer(channel("header\ncolumns\n\nrow\r\n"));
+
+        for (int line = 0; line < 4; line++) {
+            assertTrue(tokenizer.nextRow());
+            assertEquals(TsvTokenizer.HEADER_LINES_IN_SPREADSHEET + line, tokenizer.getLineNumber());
+        }
+        assertEquals("row", tokenizer.getLine());
+        assertFalse(tokenizer.nextRow());
+    }
+
+    private static ReadableByteChannel channel(String text) {
+        return Channels.newChannel(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Hands out at most three bytes at a time, with an empty read before each, like a pipe that is slow to deliver.
+     */
+    private static class SlowChannel implements ReadableByteChannel {
+        private final ByteBuffer bytes;
+        private boolean empty;
+
+        SlowChannel(String text) {
+            bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int read(ByteBuffer destination) {
+            if (!bytes.hasRemaining()) return -1;
+            empty = !empty;
+            if (empty) return 0;
+            int count = Math.min(3, Math.min(bytes.remaining(), destination.remaining()));
+            for (int i = 0; i < count; i++) {
+                destination.put(bytes.get());
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private void init(String[] lines) {
+        init(HEADER, lines);
     }
 
     private void init(String header, String[] lines) {